@@ -1,6 +1,12 @@
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class Quicksort {
 
@@ -8,6 +14,18 @@ public class Quicksort {
   private static final int SIZE = 10000000;
   private static final int BOUND_SIZE = 10000000;
   private static final int THRESHOLD = 50;
+  // Subarrays smaller than this are sorted sequentially by the parallel sort, larger ones are split into tasks.
+  // Untuned placeholder: only measured on a single core, where any split is overhead, so retune it on a multicore
+  // machine before relying on the parallel speedup
+  private static final int PARALLEL_THRESHOLD = 1 << 13;
+  // Smallest array per LSD pass that sortWithBestEngine uses radix sort for, measured against Dual Pivot Quicksort
+  private static final int RADIX_MIN_SIZE_PER_PASS = 384;
+  // Largest digit of LSD radix sort, 2^11 counters fit in the L1 cache
+  private static final int LSD_DIGIT_BITS = 11;
+  // Digit of American flag sort, which needs to keep the counters of every level
+  private static final int FLAG_DIGIT_BITS = 8;
+  // Size of the adversarial inputs, small enough that the sort without a depth limit finishes in seconds
+  private static final int ADVERSARIAL_SIZE = 50000;
 
   /**
    * Quicksort algorithm.
@@ -61,19 +79,440 @@ public class Quicksort {
    * @param threshold The threshold for switching to ShellSort.
    */
   public static void dualPivotQuicksort(int[] arr, int low, int high, int threshold) {
-    if (low < high) {
-      int[] pivots = new int[2]; // pivots[] holds the dual pivot elements
+    dualPivotQuicksort(arr, low, high, threshold, depthLimit(high - low + 1));
+  }
+
+  /**
+   * Dual Pivot Quicksort algorithm with a limit on the recursion depth, also known as introsort.
+   * Median-of-three pivots can be driven to always split off only a few elements, which makes the sort
+   * quadratic. Every partitioning level uses up one unit of depth, and a subarray that is still unsorted when
+   * the depth is used up is sorted with HeapSort instead, so the sort is O(n log n) in the worst case.
+   *
+   * The subarrays still to be sorted are kept on an explicit stack instead of the call stack, so no input can
+   * overflow the thread stack, and nothing is allocated per partitioning step. The stack holds the low and high
+   * index and the depth left of each subarray. Every level adds at most two subarrays that wait for the third,
+   * so the stack only grows beyond its initial size when the depth limit is turned off.
+   *
+   * The number of elements partitioned is returned, which is proportional to the comparisons made by the
+   * partitioning steps. The subarrays of one level do not overlap, so it is at most n times the depth, and the
+   * tests use it to check the worst case without depending on the speed of the machine.
+   *
+   * @param arr       The array to be sorted.
+   * @param low       The left index of the subarray to be sorted.
+   * @param high      The right index of the subarray to be sorted.
+   * @param threshold The threshold for switching to ShellSort.
+   * @param depth     The number of partitioning levels left before switching to HeapSort.
+   * @return The sum of the sizes of the subarrays that were partitioned.
+   */
+  private static long dualPivotQuicksort(int[] arr, int low, int high, int threshold, int depth) {
+    long partitioned = 0;
+    int[] stack = new int[3 * (2 * Math.min(depth, 64) + 3)];
+    int top = 0;
+    stack[top++] = low;
+    stack[top++] = high;
+    stack[top++] = depth;
+
+    while (top > 0) {
+      depth = stack[--top];
+      high = stack[--top];
+      low = stack[--top];
+      if (low >= high) {
+        continue;
+      }
+      if (high - low + 1 < threshold) {
+        shellSort(arr, low, high);
+        continue;
+      }
+      if (depth == 0) {
+        heapSort(arr, low, high);
+        continue;
+      }
 
       median3sort(arr, low, high); // Use median-of-three to select pivots
-      partitionDualPivot(arr, low, high, pivots);
+      partitioned += high - low + 1;
+      if (top + 9 > stack.length) {
+        stack = Arrays.copyOf(stack, 2 * stack.length);
+      }
+      if (arr[low] == arr[high]) {
+        // The pivots are equal, so the key is likely frequent, and all its copies are gathered at once
+        long equal = partitionThreeWay(arr, low, high);
+        stack[top++] = (int) equal + 1;
+        stack[top++] = high;
+        stack[top++] = depth - 1;
+        stack[top++] = low;
+        stack[top++] = (int) (equal >>> 32) - 1;
+        stack[top++] = depth - 1;
+        continue;
+      }
+      long pivots = partitionDualPivot(arr, low, high);
+      int leftPivot = (int) (pivots >>> 32);
+      int rightPivot = (int) pivots;
 
-      //quicksortWithShellSortHelper(arr, low, pivots[0] - 1);
-      //quicksortWithShellSortHelper(arr, pivots[0] + 1, pivots[1] - 1);
-      //quicksortWithShellSortHelper(arr, pivots[1] + 1, high);
+      // Pushed in reverse, so the left part is sorted first like in the recursive version
+      stack[top++] = rightPivot + 1;
+      stack[top++] = high;
+      stack[top++] = depth - 1;
+      stack[top++] = leftPivot + 1;
+      stack[top++] = rightPivot - 1;
+      stack[top++] = depth - 1;
+      stack[top++] = low;
+      stack[top++] = leftPivot - 1;
+      stack[top++] = depth - 1;
+    }
+    return partitioned;
+  }
 
-      quicksortWithShellSortHelperAndCustomThreshold(arr, low, pivots[0] - 1, threshold);
-      quicksortWithShellSortHelperAndCustomThreshold(arr, pivots[0] + 1, pivots[1] - 1, threshold);
-      quicksortWithShellSortHelperAndCustomThreshold(arr, pivots[1] + 1, high, threshold);
+  /**
+   * The depth limit of the sort, about 2 * log2(n) partitioning levels.
+   * Random pivots rarely need more, so the limit is only reached by inputs that defeat the pivot selection.
+   *
+   * @param n The number of elements to be sorted.
+   * @return The number of partitioning levels allowed before switching to HeapSort.
+   */
+  private static int depthLimit(int n) {
+    return 2 * (32 - Integer.numberOfLeadingZeros(Math.max(1, n)));
+  }
+
+  /**
+   * Parallel Dual Pivot Quicksort algorithm.
+   * The three partitions are sorted as fork/join tasks on the common pool,
+   * until they are smaller than PARALLEL_THRESHOLD and are sorted sequentially.
+   *
+   * @param arr   The array to be sorted.
+   * @param low   The left index of the subarray to be sorted.
+   * @param high  The right index of the subarray to be sorted.
+   */
+  public static void parallelDualPivotQuicksort(int[] arr, int low, int high) {
+    ForkJoinPool.commonPool().invoke(new DualPivotTask(arr, low, high, THRESHOLD, depthLimit(high - low + 1)));
+  }
+
+  /**
+   * A fork/join task that sorts a subarray with Dual Pivot Quicksort.
+   */
+  private static class DualPivotTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int[] arr;
+    private final int low;
+    private final int high;
+    private final int threshold;
+    private final int depth;
+
+    /**
+     * Constructs a task that sorts a subarray.
+     *
+     * @param arr       The array to be sorted.
+     * @param low       The left index of the subarray to be sorted.
+     * @param high      The right index of the subarray to be sorted.
+     * @param threshold The threshold for switching to ShellSort.
+     * @param depth     The number of partitioning levels left before switching to HeapSort.
+     */
+    DualPivotTask(int[] arr, int low, int high, int threshold, int depth) {
+      this.arr = arr;
+      this.low = low;
+      this.high = high;
+      this.threshold = threshold;
+      this.depth = depth;
+    }
+
+    @Override
+    protected void compute() {
+      if (high - low + 1 < PARALLEL_THRESHOLD || depth == 0) {
+        if (low < high) {
+          dualPivotQuicksort(arr, low, high, threshold, depth);
+        }
+        return;
+      }
+      median3sort(arr, low, high);
+      if (arr[low] == arr[high]) {
+        long equal = partitionThreeWay(arr, low, high);
+        invokeAll(new DualPivotTask(arr, low, (int) (equal >>> 32) - 1, threshold, depth - 1),
+            new DualPivotTask(arr, (int) equal + 1, high, threshold, depth - 1));
+        return;
+      }
+      long pivots = partitionDualPivot(arr, low, high);
+      int leftPivot = (int) (pivots >>> 32);
+      int rightPivot = (int) pivots;
+      invokeAll(new DualPivotTask(arr, low, leftPivot - 1, threshold, depth - 1),
+          new DualPivotTask(arr, leftPivot + 1, rightPivot - 1, threshold, depth - 1),
+          new DualPivotTask(arr, rightPivot + 1, high, threshold, depth - 1));
+    }
+  }
+
+  /**
+   * Sorts an array with the engine that suits its keys best, see sortWithBestEngine.
+   * This is the entry point for callers that only want the array sorted, while quicksortWithShellSortHelper
+   * and the other methods always use the algorithm they are named after.
+   *
+   * @param arr The array to be sorted.
+   */
+  public static void sort(int[] arr) {
+    sortWithBestEngine(arr, 0, arr.length - 1);
+  }
+
+  /**
+   * Sorts with the engine that suits the keys best.
+   * LSD radix sort takes one pass over the array per digit of the key range, plus the clearing of its counters,
+   * while Dual Pivot Quicksort needs about log2(n) passes. Radix sort is used when the array has at least
+   * RADIX_MIN_SIZE_PER_PASS elements per pass the key range needs. Int keys need one to three passes.
+   *
+   * @param arr  The array to be sorted.
+   * @param low  The left index of the subarray to be sorted.
+   * @param high The right index of the subarray to be sorted.
+   */
+  public static void sortWithBestEngine(int[] arr, int low, int high) {
+    int n = high - low + 1;
+    if (n < RADIX_MIN_SIZE_PER_PASS) {
+      quicksortWithShellSortHelper(arr, low, high);
+      return;
+    }
+    int min = arr[low], max = arr[low];
+    for (int i = low + 1; i <= high; i++) {
+      min = Math.min(min, arr[i]);
+      max = Math.max(max, arr[i]);
+    }
+    if (n >= RADIX_MIN_SIZE_PER_PASS * lsdPasses(rangeBits(min, max))) {
+      radixSortLSD(arr, low, high, min, max);
+    } else {
+      quicksortWithShellSortHelper(arr, low, high);
+    }
+  }
+
+  /**
+   * The number of bits needed to hold the key range.
+   * The keys are sorted by their distance from the smallest key, which is treated as unsigned,
+   * so negative keys are sorted correctly and the range of any int array fits in 32 bits.
+   *
+   * @param min The smallest key.
+   * @param max The largest key.
+   * @return The number of bits of max - min.
+   */
+  private static int rangeBits(int min, int max) {
+    return 32 - Integer.numberOfLeadingZeros(max - min);
+  }
+
+  /**
+   * The number of passes LSD radix sort needs, with digits of at most LSD_DIGIT_BITS bits.
+   *
+   * @param bits The number of bits of the key range.
+   * @return The number of passes.
+   */
+  private static int lsdPasses(int bits) {
+    return (bits + LSD_DIGIT_BITS - 1) / LSD_DIGIT_BITS;
+  }
+
+  /**
+   * LSD radix sort.
+   * Sorts stably by one digit at a time, from the least significant one, by counting the digits and moving
+   * every element to the next free position of its digit in a buffer. The key range decides the number of
+   * passes, with digits of at most LSD_DIGIT_BITS bits, spread evenly over the passes.
+   *
+   * Time Complexity: Θ(n * bits / digit bits), for a buffer of n elements.
+   *
+   * @param arr  The array to be sorted.
+   * @param low  The left index of the subarray to be sorted.
+   * @param high The right index of the subarray to be sorted.
+   */
+  public static void radixSortLSD(int[] arr, int low, int high) {
+    if (low >= high) {
+      return;
+    }
+    int min = arr[low], max = arr[low];
+    for (int i = low + 1; i <= high; i++) {
+      min = Math.min(min, arr[i]);
+      max = Math.max(max, arr[i]);
+    }
+    radixSortLSD(arr, low, high, min, max);
+  }
+
+  /**
+   * LSD radix sort of a subarray with a known key range.
+   *
+   * @param arr  The array to be sorted.
+   * @param low  The left index of the subarray to be sorted.
+   * @param high The right index of the subarray to be sorted.
+   * @param min  The smallest key in the subarray.
+   * @param max  The largest key in the subarray.
+   */
+  private static void radixSortLSD(int[] arr, int low, int high, int min, int max) {
+    int bits = rangeBits(min, max);
+    if (bits == 0) {
+      return; // All keys are equal
+    }
+    int passes = lsdPasses(bits);
+    int digitBits = (bits + passes - 1) / passes;
+    int mask = (1 << digitBits) - 1;
+    int n = high - low + 1;
+
+    int[] count = new int[mask + 2];
+    int[] from = arr, to = new int[n];
+    int fromOffset = low, toOffset = 0;
+    for (int shift = 0; shift < bits; shift += digitBits) {
+      Arrays.fill(count, 0);
+      for (int i = fromOffset; i < fromOffset + n; i++) {
+        count[((from[i] - min) >>> shift & mask) + 1]++;
+      }
+      if (count[((from[fromOffset] - min) >>> shift & mask) + 1] == n) {
+        continue; // Every key has the same digit, so the pass would not move anything
+      }
+      for (int d = 0; d <= mask; d++) {
+        count[d + 1] += count[d]; // count[d] is now where the next key with digit d goes
+      }
+      for (int i = fromOffset; i < fromOffset + n; i++) {
+        int value = from[i];
+        to[toOffset + count[(value - min) >>> shift & mask]++] = value;
+      }
+      int[] array = from;
+      from = to;
+      to = array;
+      int offset = fromOffset;
+      fromOffset = toOffset;
+      toOffset = offset;
+    }
+    if (from != arr) {
+      System.arraycopy(from, fromOffset, arr, low, n);
+    }
+  }
+
+  /**
+   * American flag sort, an in-place MSD radix sort.
+   * Counts the most significant digit, then moves every element to the bucket of its digit by following
+   * cycles of swaps, and sorts each bucket by the next digit. Buckets smaller than the threshold are sorted
+   * with ShellSort. The counting is split into fork/join tasks for large subarrays, the moving is sequential.
+   *
+   * Time Complexity: Θ(n * bits / 8) in the worst case, but most buckets get small after one or two digits.
+   *
+   * @param arr  The array to be sorted.
+   * @param low  The left index of the subarray to be sorted.
+   * @param high The right index of the subarray to be sorted.
+   */
+  public static void americanFlagSort(int[] arr, int low, int high) {
+    if (low >= high) {
+      return;
+    }
+    int min = arr[low], max = arr[low];
+    for (int i = low + 1; i <= high; i++) {
+      min = Math.min(min, arr[i]);
+      max = Math.max(max, arr[i]);
+    }
+    int bits = rangeBits(min, max);
+    if (bits == 0) {
+      return; // All keys are equal
+    }
+    int levels = (bits + FLAG_DIGIT_BITS - 1) / FLAG_DIGIT_BITS;
+    // The bucket boundaries of every level, allocated once, since a level needs them while the next one runs
+    int[][] starts = new int[levels][(1 << FLAG_DIGIT_BITS) + 1];
+    int[] next = new int[1 << FLAG_DIGIT_BITS];
+    americanFlagSort(arr, low, high, min, (levels - 1) * FLAG_DIGIT_BITS, starts, next, 0);
+  }
+
+  /**
+   * American flag sort of a subarray by one digit, and of its buckets by the digits after it.
+   *
+   * @param arr    The array to be sorted.
+   * @param low    The left index of the subarray to be sorted.
+   * @param high   The right index of the subarray to be sorted.
+   * @param min    The smallest key in the whole array.
+   * @param shift  The position of the lowest bit of the digit.
+   * @param starts The bucket boundaries of every level.
+   * @param next   The next free position in every bucket, shared by all levels.
+   * @param level  The level of the digit, 0 for the most significant one.
+   */
+  private static void americanFlagSort(int[] arr, int low, int high, int min, int shift, int[][] starts,
+                                       int[] next, int level) {
+    int buckets = 1 << FLAG_DIGIT_BITS;
+    int mask = buckets - 1;
+    int[] start = starts[level];
+    // Counting in parallel pays off later than sorting does, the factor is as untuned as PARALLEL_THRESHOLD
+    if (high - low + 1 >= PARALLEL_THRESHOLD * 8) {
+      int[] count = ForkJoinPool.commonPool().invoke(new HistogramTask(arr, low, high, min, shift));
+      System.arraycopy(count, 0, start, 1, buckets);
+    } else {
+      Arrays.fill(start, 0);
+      for (int i = low; i <= high; i++) {
+        start[((arr[i] - min) >>> shift & mask) + 1]++;
+      }
+    }
+    start[0] = low;
+    for (int d = 0; d < buckets; d++) {
+      start[d + 1] += start[d];
+      next[d] = start[d];
+    }
+
+    // Every element that is not in its bucket is moved there, and the element it replaces is moved next
+    for (int d = 0; d < buckets; d++) {
+      while (next[d] < start[d + 1]) {
+        int value = arr[next[d]];
+        int digit = (value - min) >>> shift & mask;
+        while (digit != d) {
+          int replaced = arr[next[digit]];
+          arr[next[digit]++] = value;
+          value = replaced;
+          digit = (value - min) >>> shift & mask;
+        }
+        arr[next[d]++] = value;
+      }
+    }
+
+    if (shift == 0) {
+      return;
+    }
+    for (int d = 0; d < buckets; d++) {
+      int bucketLow = start[d], bucketHigh = start[d + 1] - 1;
+      if (bucketHigh - bucketLow + 1 < THRESHOLD) {
+        shellSort(arr, bucketLow, bucketHigh);
+      } else {
+        americanFlagSort(arr, bucketLow, bucketHigh, min, shift - FLAG_DIGIT_BITS, starts, next, level + 1);
+      }
+    }
+  }
+
+  /**
+   * A fork/join task that counts the digits of a subarray for American flag sort.
+   */
+  private static class HistogramTask extends RecursiveTask<int[]> {
+    private static final long serialVersionUID = 1L;
+    private final int[] arr;
+    private final int low;
+    private final int high;
+    private final int min;
+    private final int shift;
+
+    /**
+     * Constructs a task that counts the digits of a subarray.
+     *
+     * @param arr   The array.
+     * @param low   The left index of the subarray.
+     * @param high  The right index of the subarray.
+     * @param min   The smallest key in the array.
+     * @param shift The position of the lowest bit of the digit.
+     */
+    HistogramTask(int[] arr, int low, int high, int min, int shift) {
+      this.arr = arr;
+      this.low = low;
+      this.high = high;
+      this.min = min;
+      this.shift = shift;
+    }
+
+    @Override
+    protected int[] compute() {
+      if (high - low + 1 < PARALLEL_THRESHOLD * 8) {
+        int[] count = new int[1 << FLAG_DIGIT_BITS];
+        int mask = count.length - 1;
+        for (int i = low; i <= high; i++) {
+          count[(arr[i] - min) >>> shift & mask]++;
+        }
+        return count;
+      }
+      int mid = (low + high) >>> 1;
+      HistogramTask left = new HistogramTask(arr, low, mid, min, shift);
+      left.fork();
+      int[] count = new HistogramTask(arr, mid + 1, high, min, shift).compute();
+      int[] leftCount = left.join();
+      for (int d = 0; d < count.length; d++) {
+        count[d] += leftCount[d];
+      }
+      return count;
     }
   }
 
@@ -83,9 +522,10 @@ public class Quicksort {
    * @param arr    The array to be partitioned.
    * @param low    The left index of the subarray to be partitioned.
    * @param high   The right index of the subarray to be partitioned.
-   * @param pivots An array to store the pivot positions.
+   * @return The positions of the two pivots, the left one in the high 32 bits and the right one in the low 32 bits.
+   *         They are packed into a long so that no array has to be allocated to return them.
    */
-  private static void partitionDualPivot(int[] arr, int low, int high, int[] pivots) {
+  private static long partitionDualPivot(int[] arr, int low, int high) {
     if (arr[low] > arr[high]) {
       swap(arr, low, high);
     }
@@ -117,8 +557,33 @@ public class Quicksort {
     swap(arr, low, j);
     swap(arr, high, g);
 
-    pivots[0] = j;
-    pivots[1] = g;
+    return (long) j << 32 | g;
+  }
+
+  /**
+   * Partition the array into three parts around one pivot, Dijkstra's Dutch national flag partitioning.
+   * Used instead of the dual pivot partitioning when both pivots are equal: every element equal to the pivot
+   * ends up in the middle part, which is already sorted, so runs of equal keys are not partitioned again.
+   *
+   * @param arr  The array to be partitioned.
+   * @param low  The left index of the subarray to be partitioned, holding the pivot.
+   * @param high The right index of the subarray to be partitioned.
+   * @return The first and last position of the elements equal to the pivot, packed into a long like
+   *         partitionDualPivot does.
+   */
+  private static long partitionThreeWay(int[] arr, int low, int high) {
+    int pivot = arr[low];
+    int lt = low, gt = high, k = low + 1;
+    while (k <= gt) {
+      if (arr[k] < pivot) {
+        swap(arr, lt++, k++);
+      } else if (arr[k] > pivot) {
+        swap(arr, k, gt--);
+      } else {
+        k++;
+      }
+    }
+    return (long) lt << 32 | gt;
   }
 
   /**
@@ -142,6 +607,49 @@ public class Quicksort {
     swap(arr, mid, high);
   }
 
+  /**
+   * HeapSort algorithm.
+   * Used when Quicksort has used up its depth limit, since it is O(n log n) for every input.
+   *
+   * @param arr  The array to be sorted.
+   * @param low  The left index of the subarray to be sorted.
+   * @param high The right index of the subarray to be sorted.
+   */
+  public static void heapSort(int[] arr, int low, int high) {
+    int n = high - low + 1;
+    for (int i = n / 2 - 1; i >= 0; i--) {
+      siftDown(arr, low, i, n);
+    }
+    for (int end = n - 1; end > 0; end--) {
+      swap(arr, low, low + end);
+      siftDown(arr, low, 0, end);
+    }
+  }
+
+  /**
+   * Moves an element down a max-heap stored in a subarray until both its children are smaller.
+   *
+   * @param arr  The array holding the heap.
+   * @param base The index of the root of the heap.
+   * @param i    The position in the heap of the element to be moved.
+   * @param n    The number of elements in the heap.
+   */
+  private static void siftDown(int[] arr, int base, int i, int n) {
+    int value = arr[base + i];
+    int child;
+    while ((child = 2 * i + 1) < n) {
+      if (child + 1 < n && arr[base + child + 1] > arr[base + child]) {
+        child++;
+      }
+      if (arr[base + child] <= value) {
+        break;
+      }
+      arr[base + i] = arr[base + child];
+      i = child;
+    }
+    arr[base + i] = value;
+  }
+
   /**
    * ShellSort algorithm.
    *
@@ -252,6 +760,203 @@ public class Quicksort {
     return array;
   }
 
+  /**
+   * Generate an organ pipe array, ascending up to the middle and descending after it.
+   *
+   * @param size The size of the array.
+   * @return The generated organ pipe array.
+   */
+  public static int[] organPipeArray(int size) {
+    int[] array = new int[size];
+    for (int i = 0; i < size; i++) {
+      array[i] = Math.min(i, size - 1 - i);
+    }
+    return array;
+  }
+
+  /**
+   * Generate a sorted array where one percent of the elements are replaced by random values.
+   *
+   * @param size The size of the array.
+   * @return The generated array.
+   */
+  public static int[] sortedWithNoiseArray(int size) {
+    Random rnd = new Random();
+    int[] array = sortedDataArray(size);
+    for (int i = 0; i < size / 100; i++) {
+      array[rnd.nextInt(size)] = rnd.nextInt(size);
+    }
+    return array;
+  }
+
+  /**
+   * Generate a sawtooth array, ascending runs of 1000 elements repeated.
+   *
+   * @param size The size of the array.
+   * @return The generated sawtooth array.
+   */
+  public static int[] sawtoothArray(int size) {
+    int[] array = new int[size];
+    for (int i = 0; i < size; i++) {
+      array[i] = i % 1000;
+    }
+    return array;
+  }
+
+  /**
+   * Generate a median-of-three killer for Dual Pivot Quicksort.
+   *
+   * @param size      The size of the array.
+   * @param threshold The threshold for switching to ShellSort that the sort will be run with.
+   * @return An array that makes every partitioning step split off only a few elements.
+   */
+  public static int[] medianOf3KillerArray(int size, int threshold) {
+    return new KillerAdversary(size).generate(threshold);
+  }
+
+  /**
+   * McIlroy's killer adversary for Quicksort ("A Killer Adversary for Quicksort", 1999).
+   * It runs a copy of the partitioning of Dual Pivot Quicksort on item numbers, and only decides the value of an
+   * item when a comparison needs it. Undecided items are "gas", larger than every decided value. The candidate
+   * is the gas item last compared with a decided one, which is likely the pivot. When two gas items are
+   * compared, the candidate is frozen to the smallest value not yet used, as in McIlroy's original, so every
+   * pivot is smaller than all the gas and splits off only the few items decided before it. The decided values
+   * are an input that makes the real sort do the same comparisons, since it partitions the same way.
+   */
+  private static class KillerAdversary {
+    private final int[] value;
+    private final int gas;
+    private int solid;
+    private int candidate;
+
+    /**
+     * Constructs an adversary for an array of the given size, with every item still undecided.
+     *
+     * @param size The size of the array.
+     */
+    KillerAdversary(int size) {
+      value = new int[size];
+      gas = size;
+      Arrays.fill(value, gas);
+    }
+
+    /**
+     * Compares two items, deciding the value of one of them if both are undecided.
+     *
+     * @param x The first item.
+     * @param y The second item.
+     * @return A negative number, zero or a positive number if x is smaller than, equal to or larger than y.
+     */
+    private int compare(int x, int y) {
+      if (value[x] == gas && value[y] == gas) {
+        value[x == candidate ? x : y] = solid++;
+      }
+      if (value[x] == gas) {
+        candidate = x;
+      } else if (value[y] == gas) {
+        candidate = y;
+      }
+      return Integer.compare(value[x], value[y]);
+    }
+
+    /**
+     * Runs the copy of the sort and decides the values left.
+     * Subarrays smaller than the threshold are not partitioned by the real sort, so they are skipped.
+     * The copy uses a stack instead of recursion, since the recursion would be as deep as the array is long.
+     *
+     * @param threshold The threshold for switching to ShellSort.
+     * @return The value of every item, in the order of the items.
+     */
+    int[] generate(int threshold) {
+      int[] items = sortedDataArray(value.length);
+      ArrayDeque<int[]> stack = new ArrayDeque<>();
+      stack.push(new int[] {0, items.length - 1});
+      while (!stack.isEmpty()) {
+        int[] range = stack.pop();
+        int low = range[0], high = range[1];
+        if (high - low + 1 < threshold || low >= high) {
+          continue;
+        }
+        median3sort(items, low, high);
+        compare(items[low], items[high]); // The check for equal pivots, never equal here since values are distinct
+        long pivots = partitionDualPivot(items, low, high);
+        stack.push(new int[] {low, (int) (pivots >>> 32) - 1});
+        stack.push(new int[] {(int) (pivots >>> 32) + 1, (int) pivots - 1});
+        stack.push(new int[] {(int) pivots + 1, high});
+      }
+      for (int i = 0; i < value.length; i++) {
+        if (value[i] == gas) {
+          value[i] = solid++;
+        }
+      }
+      return value;
+    }
+
+    /**
+     * Copy of Quicksort.median3sort that compares items with the adversary.
+     *
+     * @param arr  The items to be sorted.
+     * @param low  The left index of the subarray.
+     * @param high The right index of the subarray.
+     */
+    private void median3sort(int[] arr, int low, int high) {
+      int mid = (low + high) / 2;
+      if (compare(arr[low], arr[mid]) > 0) {
+        swap(arr, low, mid);
+      }
+      if (compare(arr[low], arr[high]) > 0) {
+        swap(arr, low, high);
+      }
+      if (compare(arr[mid], arr[high]) > 0) {
+        swap(arr, mid, high);
+      }
+      swap(arr, mid, high);
+    }
+
+    /**
+     * Copy of Quicksort.partitionDualPivot that compares items with the adversary.
+     *
+     * @param arr    The items to be partitioned.
+     * @param low    The left index of the subarray to be partitioned.
+     * @param high   The right index of the subarray to be partitioned.
+     * @return The positions of the two pivots, packed into a long like Quicksort.partitionDualPivot does.
+     */
+    private long partitionDualPivot(int[] arr, int low, int high) {
+      if (compare(arr[low], arr[high]) > 0) {
+        swap(arr, low, high);
+      }
+
+      int j = low + 1;
+      int g = high - 1, k = low + 1;
+      int p = arr[low], q = arr[high];
+
+      while (k <= g) {
+        if (compare(arr[k], p) < 0) {
+          swap(arr, k, j);
+          j++;
+        } else if (compare(arr[k], q) >= 0) {
+          while (compare(arr[g], q) > 0 && k < g) {
+            g--;
+          }
+          swap(arr, k, g);
+          g--;
+          if (compare(arr[k], p) < 0) {
+            swap(arr, k, j);
+            j++;
+          }
+        }
+        k++;
+      }
+      j--;
+      g++;
+
+      swap(arr, low, j);
+      swap(arr, high, g);
+
+      return (long) j << 32 | g;
+    }
+  }
+
   /**
    * Test sorting performance on a random dataset.
    * It prints the time taken to sort the dataset and checks if the sorting is correct.
@@ -270,6 +975,95 @@ public class Quicksort {
     System.out.println("Sorting " + SIZE + " elements took " + (endTime - startTime) + " milliseconds.");
   }
 
+  /**
+   * Test the parallel sort on a random dataset and compare it with the sequential sort and Arrays.parallelSort.
+   * It prints the time taken by each and checks if the sorting is correct.
+   */
+  public static void testParallelSortingPerformance() {
+    int[] data = randomDataArray(BOUND_SIZE, SIZE);
+    int initialChecksum = checksum(data);
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    // Warm up the JIT so the first timed sort is not slower than the rest
+    for (int i = 0; i < 3; i++) {
+      parallelDualPivotQuicksort(Arrays.copyOf(data, SIZE / 10), 0, SIZE / 10 - 1);
+      Arrays.parallelSort(Arrays.copyOf(data, SIZE / 10));
+    }
+
+    int[] copy = data.clone();
+    long startTime = System.currentTimeMillis();
+    quicksortWithShellSortHelper(copy, 0, SIZE - 1);
+    long sequentialTime = System.currentTimeMillis() - startTime;
+
+    copy = data.clone();
+    startTime = System.currentTimeMillis();
+    parallelDualPivotQuicksort(copy, 0, SIZE - 1);
+    long parallelTime = System.currentTimeMillis() - startTime;
+
+    assert isSorted(copy) : "Parallel sorting failed on random dataset!";
+    assert initialChecksum == checksum(copy) : "Checksum failed on parallel sort! Some values might have been overwritten.";
+
+    copy = data.clone();
+    startTime = System.currentTimeMillis();
+    Arrays.parallelSort(copy);
+    long arraysTime = System.currentTimeMillis() - startTime;
+
+    System.out.println("Sorting " + SIZE + " elements on " + cores + " cores:");
+    System.out.println("  Sequential dual pivot quicksort: " + sequentialTime + " milliseconds");
+    System.out.printf("  Parallel dual pivot quicksort: %d milliseconds (%.2fx speedup)%n",
+        parallelTime, (double) sequentialTime / Math.max(1, parallelTime));
+    System.out.println("  Arrays.parallelSort: " + arraysTime + " milliseconds");
+  }
+
+  /**
+   * Test the radix sorts against Dual Pivot Quicksort on random datasets with the bound of randomDataArray,
+   * the bound of Quicksort2 and the full range of int.
+   * It prints the time taken by each engine and checks if the sorting is correct.
+   */
+  public static void testRadixSortPerformance() {
+    int[] bounds = {BOUND_SIZE, 1000000, Integer.MAX_VALUE};
+    String[] names = {"Dual pivot quicksort", "LSD radix sort", "American flag sort", "Best engine"};
+
+    // Warm up the JIT so the first timed sort is not slower than the rest
+    for (int i = 0; i < 3; i++) {
+      int[] data = randomDataArray(BOUND_SIZE, SIZE / 10);
+      radixSortLSD(data.clone(), 0, data.length - 1);
+      americanFlagSort(data.clone(), 0, data.length - 1);
+      sortWithBestEngine(data.clone(), 0, data.length - 1);
+    }
+
+    for (int bound : bounds) {
+      int[] data = randomDataArray(bound, SIZE);
+      int initialChecksum = checksum(data);
+      System.out.println("Sorting " + SIZE + " elements below " + bound + ":");
+
+      long dualPivotTime = 0;
+      for (int engine = 0; engine < names.length; engine++) {
+        int[] copy = data.clone();
+        long startTime = System.currentTimeMillis();
+        if (engine == 0) {
+          quicksortWithShellSortHelper(copy, 0, SIZE - 1);
+        } else if (engine == 1) {
+          radixSortLSD(copy, 0, SIZE - 1);
+        } else if (engine == 2) {
+          americanFlagSort(copy, 0, SIZE - 1);
+        } else {
+          sort(copy);
+        }
+        long time = System.currentTimeMillis() - startTime;
+        if (engine == 0) {
+          dualPivotTime = time;
+        }
+
+        assert isSorted(copy) : names[engine] + " failed on random dataset!";
+        assert initialChecksum == checksum(copy) : "Checksum failed on " + names[engine] + "! Some values might have been overwritten.";
+
+        System.out.printf("  %s: %d milliseconds (%.2fx)%n", names[engine], time,
+            (double) dualPivotTime / Math.max(1, time));
+      }
+    }
+  }
+
   /**
    * Test sorting performance on a dataset with duplicates.
    * It prints the time taken to sort the dataset and checks if the sorting is correct.
@@ -288,6 +1082,38 @@ public class Quicksort {
     System.out.println("Sorting " + SIZE + " elements with duplicates took " + (endTime - startTime) + " milliseconds.");
   }
 
+  /**
+   * Test sorting datasets with many equal keys, which should sort at least as fast as a random dataset of the
+   * same size. It checks if the sorting is correct, and prints the time taken to sort each dataset and how it
+   * compares with the random dataset.
+   */
+  public static void testDuplicateHeavyInputs() {
+    String[] names = {"random", "half 42", "10 distinct keys", "2 distinct keys", "all equal"};
+    int[][] inputs = {randomDataArray(BOUND_SIZE, SIZE), arrayWithDuplicates(BOUND_SIZE, SIZE),
+        randomDataArray(10, SIZE), randomDataArray(2, SIZE), new int[SIZE]};
+
+    System.out.println("Sorting " + SIZE + " elements with duplicate keys:");
+    long randomTime = 0;
+    for (int i = 0; i < inputs.length; i++) {
+      int[] data = inputs[i];
+      int initialChecksum = checksum(data);
+
+      long startTime = System.currentTimeMillis();
+      quicksortWithShellSortHelper(data, 0, SIZE - 1);
+      long time = System.currentTimeMillis() - startTime;
+      if (i == 0) {
+        randomTime = time;
+      }
+
+      assert isSorted(data) : "Sorting failed on " + names[i] + " dataset!";
+      assert initialChecksum == checksum(data) : "Checksum failed on " + names[i] + " dataset! Some values might have been overwritten.";
+
+      // Only printed, a wall-clock comparison would make the test fail on a slow or busy machine
+      System.out.printf("  %s: %d milliseconds, %.2f times random%n", names[i], time,
+          (double) time / Math.max(1, randomTime));
+    }
+  }
+
   /**
    * Test sorting performance on an already sorted dataset.
    * It prints the time taken to sort the dataset and checks if the sorting is correct.
@@ -306,6 +1132,87 @@ public class Quicksort {
     System.out.println("Sorting " + SIZE + " elements that are already sorted took " + (endTime - startTime) + " milliseconds.");
   }
 
+  /**
+   * Test sorting performance on inputs that are known to be hard for Quicksort.
+   * The median-of-three killer is also sorted without a depth limit, to show the time the limit saves.
+   * It checks if the sorting is correct, and prints the time taken to sort each dataset and how it compares
+   * with random data of the same size. The worst case is checked by counting the partitioned elements instead
+   * of timing: with the depth limit the killer stays within n times the depth, and without it the killer must
+   * still be quadratic, so the check fails if either the limit or the adversary stops working.
+   */
+  public static void testAdversarialInputs() {
+    int[] random = randomDataArray(ADVERSARIAL_SIZE, ADVERSARIAL_SIZE);
+    String[] names = {"random", "median-of-3 killer", "organ pipe", "sorted with 1% noise", "sawtooth"};
+    int[][] inputs = {random, medianOf3KillerArray(ADVERSARIAL_SIZE, THRESHOLD), organPipeArray(ADVERSARIAL_SIZE),
+        sortedWithNoiseArray(ADVERSARIAL_SIZE), sawtoothArray(ADVERSARIAL_SIZE)};
+
+    // Warm up the JIT so the first timed sort is not slower than the rest
+    for (int i = 0; i < 20; i++) {
+      for (int[] input : inputs) {
+        quicksortWithShellSortHelper(input.clone(), 0, ADVERSARIAL_SIZE - 1);
+      }
+    }
+
+    System.out.println("Sorting " + ADVERSARIAL_SIZE + " elements of adversarial inputs:");
+    long randomTime = 0;
+    for (int i = 0; i < inputs.length; i++) {
+      int[] data = inputs[i].clone();
+      int initialChecksum = checksum(data);
+
+      long startTime = System.nanoTime();
+      quicksortWithShellSortHelper(data, 0, ADVERSARIAL_SIZE - 1);
+      long time = System.nanoTime() - startTime;
+
+      assert isSorted(data) : "Sorting failed on " + names[i] + " dataset!";
+      assert initialChecksum == checksum(data) : "Checksum failed on " + names[i] + " dataset! Some values might have been overwritten.";
+
+      if (i == 0) {
+        randomTime = time;
+      }
+      // Only printed, a wall-clock bound would make the test fail on a slow or busy machine
+      System.out.printf("  %s: %.2f milliseconds, %.1f times random%n", names[i], time / 1e6,
+          (double) time / randomTime);
+    }
+
+    int depth = depthLimit(ADVERSARIAL_SIZE);
+    long limited = dualPivotQuicksort(inputs[1].clone(), 0, ADVERSARIAL_SIZE - 1, THRESHOLD, depth);
+    assert limited <= (long) ADVERSARIAL_SIZE * depth : "Depth limit did not bound the median-of-3 killer!";
+
+    int[] data = inputs[1].clone();
+    long startTime = System.nanoTime();
+    long unlimited = dualPivotQuicksort(data, 0, ADVERSARIAL_SIZE - 1, THRESHOLD, Integer.MAX_VALUE);
+    long time = System.nanoTime() - startTime;
+    assert isSorted(data) : "Sorting failed on median-of-3 killer without depth limit!";
+    assert unlimited >= (long) ADVERSARIAL_SIZE * ADVERSARIAL_SIZE / 8 : "Median-of-3 killer is not quadratic!";
+    System.out.printf("  median-of-3 killer without depth limit: %.2f milliseconds%n", time / 1e6);
+    System.out.printf("  elements partitioned on the killer: %d with depth limit, %d without%n", limited, unlimited);
+  }
+
+  /**
+   * Test that the sort does not allocate per partitioning step.
+   * It sorts a random dataset before the JIT has compiled the sort, when escape analysis cannot remove
+   * short-lived arrays, and after, and prints the bytes the sorting thread allocated each time.
+   */
+  public static void testAllocation() {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    int[] data = randomDataArray(BOUND_SIZE, SIZE);
+
+    for (int run = 0; run < 2; run++) {
+      int[] copy = data.clone();
+      long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+      quicksortWithShellSortHelper(copy, 0, SIZE - 1);
+      long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+      assert isSorted(copy) : "Sorting failed on random dataset!";
+      // Only the work stack is allocated, once per sort
+      assert allocated < 4096 : "Sorting allocated " + allocated + " bytes!";
+
+      System.out.println("Sorting " + SIZE + " elements " + (run == 0 ? "before" : "after")
+          + " warming up allocated " + allocated + " bytes.");
+    }
+  }
+
 //    Code used to find out the best threshold value. Can be used to generate graphs.
 //
 //    /**
@@ -376,9 +1283,14 @@ public class Quicksort {
   public static void main(String[] args) {
     System.out.println("Starting performance tests...\n");
 
+    testAllocation();
     testSortingPerformance();
     testSortingWithDuplicates();
+    testDuplicateHeavyInputs();
     testSortingAlreadySortedData();
+    testParallelSortingPerformance();
+    testRadixSortPerformance();
+    testAdversarialInputs();
     //testSortingPerformanceWithGraphs();
 
     System.out.println("\nAll tests completed successfully!");
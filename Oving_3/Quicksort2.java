@@ -1,4 +1,6 @@
+import java.util.Arrays;
 import java.util.Random;
+import java.util.function.IntBinaryOperator;
 
 /**
  * This class provides an implementation of the quicksort algorithm with enhancements.
@@ -16,13 +18,32 @@ public class Quicksort2 {
    * @param h The ending index.
    */
   public static void quicksort(int[] t, int v, int h) {
+    quicksort(t, v, h, depthLimit(h - v + 1));
+  }
+
+  /**
+   * Standard quicksort algorithm with a limit on the recursion depth, also known as introsort.
+   * Every split uses up one unit of depth, and a segment that is still unsorted when the depth is used up
+   * is sorted with heap sort instead, so inputs that defeat the median-of-three pivot cannot make it quadratic.
+   *
+   * @param t The array to sort.
+   * @param v The starting index.
+   * @param h The ending index.
+   * @param depth The number of splits left before switching to heap sort.
+   * @return The sum of the sizes of the segments that were split, at most the length times the depth.
+   */
+  private static long quicksort(int[] t, int v, int h, int depth) {
     if (h - v > 2) {
-      int k = split(t, v, h);
-      quicksort(t, v, k - 1);
-      quicksort(t, k + 1, h);
-    } else {
+      if (depth == 0) {
+        heapSort(t, v, h);
+        return 0;
+      }
+      long k = split(t, v, h);
+      return h - v + 1 + quicksort(t, v, (int) (k >>> 32) - 1, depth - 1) + quicksort(t, (int) k + 1, h, depth - 1);
+    } else if (v < h) {
       median3sort(t, v, h);
     }
+    return 0;
   }
 
   /**
@@ -36,13 +57,84 @@ public class Quicksort2 {
    * @param threshold The threshold for switching to shell sort.
    */
   public static void quicksortWithShellSort(int[] t, int v, int h, int threshold) {
+    quicksortWithShellSort(t, v, h, threshold, depthLimit(h - v + 1));
+  }
+
+  /**
+   * Quicksort algorithm with a threshold to switch to shell sort and a limit on the recursion depth.
+   *
+   * @param t The array to sort.
+   * @param v The starting index.
+   * @param h The ending index.
+   * @param threshold The threshold for switching to shell sort.
+   * @param depth The number of splits left before switching to heap sort.
+   * @return The sum of the sizes of the segments that were split, at most the length times the depth.
+   */
+  private static long quicksortWithShellSort(int[] t, int v, int h, int threshold, int depth) {
     if (h - v > threshold) {
-      int k = split(t, v, h);
-      quicksortWithShellSort(t, v, k - 1, threshold);
-      quicksortWithShellSort(t, k + 1, h, threshold);
+      if (depth == 0) {
+        heapSort(t, v, h);
+        return 0;
+      }
+      long k = split(t, v, h);
+      return h - v + 1 + quicksortWithShellSort(t, v, (int) (k >>> 32) - 1, threshold, depth - 1)
+          + quicksortWithShellSort(t, (int) k + 1, h, threshold, depth - 1);
     } else {
       shellSort(t, v, h);
     }
+    return 0;
+  }
+
+  /**
+   * The depth limit of quicksort, about 2 * log2(n) splits.
+   *
+   * @param n The number of elements to sort.
+   * @return The number of splits allowed before switching to heap sort.
+   */
+  private static int depthLimit(int n) {
+    return 2 * (32 - Integer.numberOfLeadingZeros(Math.max(1, n)));
+  }
+
+  /**
+   * Heap sort algorithm, O(n log n) for every input.
+   *
+   * @param t The array to sort.
+   * @param v The starting index.
+   * @param h The ending index.
+   */
+  private static void heapSort(int[] t, int v, int h) {
+    int n = h - v + 1;
+    for (int i = n / 2 - 1; i >= 0; i--) {
+      siftDown(t, v, i, n);
+    }
+    for (int end = n - 1; end > 0; end--) {
+      swap(t, v, v + end);
+      siftDown(t, v, 0, end);
+    }
+  }
+
+  /**
+   * Moves an element down a max-heap stored in an array segment until both its children are smaller.
+   *
+   * @param t The array.
+   * @param v The index of the root of the heap.
+   * @param i The position in the heap of the element to move.
+   * @param n The number of elements in the heap.
+   */
+  private static void siftDown(int[] t, int v, int i, int n) {
+    int value = t[v + i];
+    int child;
+    while ((child = 2 * i + 1) < n) {
+      if (child + 1 < n && t[v + child + 1] > t[v + child]) {
+        child++;
+      }
+      if (t[v + child] <= value) {
+        break;
+      }
+      t[v + i] = t[v + child];
+      i = child;
+    }
+    t[v + i] = value;
   }
 
   /**
@@ -67,18 +159,24 @@ public class Quicksort2 {
   }
 
   /**
-   * Splits an array segment into two parts.
+   * Splits an array segment into two parts around the median of three.
+   * If the median is equal to the first or last element, the pivot is likely a frequent key,
+   * so the segment is split into three parts instead, with every element equal to the pivot in the middle.
    *
    * @param t The array segment.
    * @param v The starting index.
    * @param h The ending index.
-   * @return The index of the pivot.
+   * @return The first index of the elements equal to the pivot in the high 32 bits and the last index in the
+   *         low 32 bits. Both are the index of the pivot after a two-way split.
    */
-  private static int split(int[] t, int v, int h) {
+  private static long split(int[] t, int v, int h) {
     int iv;
     int ih;
     int m = median3sort(t, v, h);
     int dv = t[m];
+    if (t[v] == dv || t[h] == dv) {
+      return splitThreeWay(t, v, h, m);
+    }
     swap(t, m, h - 1);
     for (iv = v, ih = h - 1;;) {
       while (t[++iv] < dv) ;
@@ -89,7 +187,62 @@ public class Quicksort2 {
       swap(t, iv, ih);
     }
     swap(t, iv, h - 1);
-    return iv;
+    return (long) iv << 32 | iv;
+  }
+
+  /**
+   * Splits an array segment into the elements smaller than, equal to and larger than the pivot,
+   * Bentley and McIlroy's three-way partitioning. It scans like split, but swaps the elements equal to the pivot
+   * to the ends of the segment as it meets them, and moves them to the middle when the scans have met.
+   * Elements that are not equal to the pivot are only moved when split would move them too.
+   *
+   * @param t The array segment.
+   * @param v The starting index.
+   * @param h The ending index.
+   * @param m The index of the pivot.
+   * @return The first index of the elements equal to the pivot in the high 32 bits and the last index in the
+   *         low 32 bits.
+   */
+  private static long splitThreeWay(int[] t, int v, int h, int m) {
+    int dv = t[m];
+    swap(t, m, v);
+    int iv = v;
+    int ih = h + 1;
+    int p = v; // t[v..p] are equal to the pivot
+    int q = h + 1; // t[q..h] are equal to the pivot
+    for (;;) {
+      while (t[++iv] < dv) {
+        if (iv == h) {
+          break;
+        }
+      }
+      while (t[--ih] > dv) {
+        if (ih == v) {
+          break;
+        }
+      }
+      if (iv == ih && t[iv] == dv) {
+        swap(t, ++p, iv);
+      }
+      if (iv >= ih) {
+        break;
+      }
+      swap(t, iv, ih);
+      if (t[iv] == dv) {
+        swap(t, ++p, iv);
+      }
+      if (t[ih] == dv) {
+        swap(t, --q, ih);
+      }
+    }
+    iv = ih + 1;
+    for (int k = v; k <= p; k++) {
+      swap(t, k, ih--);
+    }
+    for (int k = h; k >= q; k--) {
+      swap(t, k, iv++);
+    }
+    return (long) (ih + 1) << 32 | (iv - 1);
   }
 
   /**
@@ -143,6 +296,90 @@ public class Quicksort2 {
     }
   }
 
+  /**
+   * Builds a median-of-three killer for split with McIlroy's adversary ("A Killer Adversary for Quicksort", 1999).
+   * A copy of split is run on item numbers, and the value of an item is only decided when a comparison needs it.
+   * Undecided items are larger than every decided value. The candidate is the undecided item last compared with
+   * a decided one, which is likely the pivot, and when two undecided items are compared, the candidate gets the
+   * smallest value not yet used, as in McIlroy's original. Quicksort makes the same comparisons on the decided
+   * values, so every split only splits off a few elements.
+   *
+   * @param size The size of the array.
+   * @param threshold The largest h - v that quicksort does not split, 2 for the standard quicksort.
+   * @return The killer array.
+   */
+  private static int[] medianOf3Killer(int size, int threshold) {
+    int[] value = new int[size];
+    int gas = size;
+    Arrays.fill(value, gas);
+    int[] state = new int[2]; // The next value to decide and the candidate, the likely pivot
+    IntBinaryOperator compare = (x, y) -> {
+      if (value[x] == gas && value[y] == gas) {
+        value[x == state[1] ? x : y] = state[0]++;
+      }
+      if (value[x] == gas) {
+        state[1] = x;
+      } else if (value[y] == gas) {
+        state[1] = y;
+      }
+      return Integer.compare(value[x], value[y]);
+    };
+
+    int[] t = new int[size];
+    for (int i = 0; i < size; i++) {
+      t[i] = i;
+    }
+    // A stack instead of recursion, since the recursion would be as deep as the array is long
+    int[] stack = new int[2 * size + 2];
+    int top = 0;
+    stack[top++] = 0;
+    stack[top++] = size - 1;
+    while (top > 0) {
+      int h = stack[--top];
+      int v = stack[--top];
+      if (h - v <= threshold) {
+        continue;
+      }
+      // Copy of median3sort and split
+      int m = (v + h) / 2;
+      if (compare.applyAsInt(t[v], t[m]) > 0) {
+        swap(t, v, m);
+      }
+      if (compare.applyAsInt(t[m], t[h]) > 0) {
+        swap(t, m, h);
+        if (compare.applyAsInt(t[v], t[m]) > 0) {
+          swap(t, v, m);
+        }
+      }
+      int dv = t[m];
+      // The check for a frequent pivot, never equal here since the values are distinct
+      compare.applyAsInt(t[v], dv);
+      compare.applyAsInt(t[h], dv);
+      swap(t, m, h - 1);
+      int iv;
+      int ih;
+      for (iv = v, ih = h - 1;;) {
+        while (compare.applyAsInt(t[++iv], dv) < 0) ;
+        while (compare.applyAsInt(t[--ih], dv) > 0) ;
+        if (iv >= ih) {
+          break;
+        }
+        swap(t, iv, ih);
+      }
+      swap(t, iv, h - 1);
+      stack[top++] = v;
+      stack[top++] = iv - 1;
+      stack[top++] = iv + 1;
+      stack[top++] = h;
+    }
+    for (int i = 0; i < size; i++) {
+      if (value[i] == gas) {
+        value[i] = state[0]++;
+      }
+    }
+    return value;
+  }
+
   /**
    * Computes the sum of elements in an array.
    *
@@ -194,6 +431,8 @@ public class Quicksort2 {
     fillArrayWithRandomNumbers(duplicateNumbers, true);
     testQuicksort(duplicateNumbers);
     testQuickSortWithNThreshold(threshold);
+    testAdversarialInputs(threshold);
+    testDuplicateHeavyInputs(threshold);
     for (int i = 2; i <= threshold; i++) {
       System.out.println();
       testQuickSortWithNThreshold(i);
@@ -255,6 +494,152 @@ public class Quicksort2 {
     System.out.println("Same numbers before as after sorting: " + (sumArrayBefore - sumArrayAfter == 0) + "\n");
   }
 
+  /**
+   * Test both quicksorts on arrays with many equal keys: every second element 42, ten distinct keys,
+   * two distinct keys and all keys equal. Each is checked for being sorted with the same numbers, and its time
+   * is printed next to that of the random numbers in unsortedNumbers. It should not be longer, since the
+   * elements equal to the pivot are split off at once.
+   *
+   * @param threshold The threshold for switching to shell sort.
+   */
+  public static void testDuplicateHeavyInputs(int threshold) {
+    int size = unsortedNumbers.length;
+    int[] halfDuplicates = new int[size];
+    fillArrayWithRandomNumbers(halfDuplicates, true);
+    int[] tenKeys = new int[size];
+    int[] twoKeys = new int[size];
+    for (int i = 0; i < size; i++) {
+      tenKeys[i] = random.nextInt(10);
+      twoKeys[i] = random.nextInt(2);
+    }
+    String[] names = {"random numbers", "half 42", "10 distinct keys", "2 distinct keys", "all equal"};
+    int[][] inputs = {unsortedNumbers, halfDuplicates, tenKeys, twoKeys, new int[size]};
+
+    for (int variant = 0; variant < 2; variant++) {
+      long randomTime = 0;
+      for (int i = 0; i < inputs.length; i++) {
+        int[] copiedArray = inputs[i].clone();
+        int sumArrayBefore = sumOfArray(copiedArray);
+
+        long startTime = System.currentTimeMillis();
+        if (variant == 0) {
+          quicksort(copiedArray, 0, copiedArray.length - 1);
+        } else {
+          quicksortWithShellSort(copiedArray, 0, copiedArray.length - 1, threshold);
+        }
+        long totalTime = System.currentTimeMillis() - startTime;
+        if (i == 0) {
+          randomTime = totalTime;
+        }
+
+        System.out.println("Used " + totalTime + " ms sorting " + names[i] + " with "
+            + (variant == 0 ? "normal quicksort" : "threshold of " + threshold));
+        System.out.println("Test if sorted correctly: " + test(copiedArray));
+        System.out.println("Same numbers before and after sorting: " + (sumArrayBefore - sumOfArray(copiedArray) == 0));
+        System.out.printf("Time compared to random numbers: %.2fx%n", (double) totalTime / Math.max(1, randomTime));
+        assert test(copiedArray) : "Sorting failed on " + names[i] + "!";
+        assert sumArrayBefore == sumOfArray(copiedArray) : "Sum changed when sorting " + names[i] + "!";
+      }
+      System.out.println();
+    }
+  }
+
+  /**
+   * Test both quicksorts on inputs that are known to be hard for quicksort: median-of-three killers,
+   * an organ pipe, a sorted array with one percent noise and a sawtooth.
+   * Each input is checked for being sorted, and its time is printed next to that of random numbers of the
+   * same size. The killers are also sorted without a depth limit, to show the time the limit saves.
+   * The worst case is checked by counting the elements split instead of timing: with the depth limit a killer
+   * stays within n times the depth, and a smaller killer without the limit must still be quadratic, since the
+   * full size overflows the stack.
+   *
+   * @param threshold The threshold for switching to shell sort.
+   */
+  public static void testAdversarialInputs(int threshold) {
+    int size = 50000;
+    int[] randomNumbers = new int[size];
+    fillArrayWithRandomNumbers(randomNumbers, false);
+    int[] organPipe = new int[size];
+    int[] sortedWithNoise = new int[size];
+    int[] sawtooth = new int[size];
+    for (int i = 0; i < size; i++) {
+      organPipe[i] = Math.min(i, size - 1 - i);
+      sortedWithNoise[i] = random.nextInt(100) == 0 ? random.nextInt(size) : i;
+      sawtooth[i] = i % 1000;
+    }
+    String[] names = {"random", "median-of-3 killer", "organ pipe", "sorted with noise", "sawtooth"};
+    int[][] inputs = {randomNumbers, null, organPipe, sortedWithNoise, sawtooth};
+
+    for (int variant = 0; variant < 2; variant++) {
+      int sortThreshold = variant == 0 ? 2 : threshold;
+      inputs[1] = medianOf3Killer(size, sortThreshold);
+      // Warm up the JIT so the first timed sort is not slower than the rest
+      for (int i = 0; i < 20; i++) {
+        for (int[] input : inputs) {
+          sortAdversarialInput(input.clone(), sortThreshold, -1);
+        }
+      }
+
+      long randomTime = 0;
+      for (int i = 0; i < inputs.length; i++) {
+        int[] copiedArray = inputs[i].clone();
+        int sumArrayBefore = sumOfArray(copiedArray);
+
+        long startTime = System.nanoTime();
+        sortAdversarialInput(copiedArray, sortThreshold, -1);
+        long totalTime = System.nanoTime() - startTime;
+        if (i == 0) {
+          randomTime = totalTime;
+        }
+
+        System.out.printf("Used %.2f ms sorting %s with %s%n", totalTime / 1e6, names[i],
+            variant == 0 ? "normal quicksort" : "threshold of " + threshold);
+        System.out.println("Test if sorted correctly: " + test(copiedArray));
+        System.out.println("Same numbers before and after sorting: " + (sumArrayBefore - sumOfArray(copiedArray) == 0));
+        System.out.printf("Time compared to random numbers: %.1fx%n", (double) totalTime / randomTime);
+        assert test(copiedArray) : "Sorting failed on " + names[i] + "!";
+        assert sumArrayBefore == sumOfArray(copiedArray) : "Sum changed when sorting " + names[i] + "!";
+      }
+
+      long limited = sortAdversarialInput(inputs[1].clone(), sortThreshold, -1);
+      assert limited <= (long) size * depthLimit(size) : "Depth limit did not bound the median-of-3 killer!";
+      int smallSize = size / 10;
+      long unlimited = sortAdversarialInput(medianOf3Killer(smallSize, sortThreshold), sortThreshold,
+          Integer.MAX_VALUE);
+      assert unlimited >= (long) smallSize * smallSize / 8 : "Median-of-3 killer is not quadratic!";
+      System.out.println("Elements split: " + limited + " for the killer with depth limit, " + unlimited
+          + " for a killer of " + smallSize + " without");
+
+      long startTime = System.nanoTime();
+      try {
+        sortAdversarialInput(inputs[1].clone(), sortThreshold, Integer.MAX_VALUE);
+        System.out.printf("Used %.2f ms sorting median-of-3 killer without depth limit%n%n",
+            (System.nanoTime() - startTime) / 1e6);
+      } catch (StackOverflowError e) {
+        System.out.printf("Stack overflow after %.2f ms sorting median-of-3 killer without depth limit%n%n",
+            (System.nanoTime() - startTime) / 1e6);
+      }
+    }
+  }
+
+  /**
+   * Sorts an array with the standard quicksort if the threshold is 2, and with shell sort below the threshold
+   * otherwise.
+   *
+   * @param t The array to sort.
+   * @param threshold The threshold for switching to shell sort.
+   * @param depth The depth limit, or -1 for the default limit.
+   * @return The sum of the sizes of the segments that were split.
+   */
+  private static long sortAdversarialInput(int[] t, int threshold, int depth) {
+    int limit = depth < 0 ? depthLimit(t.length) : depth;
+    if (threshold == 2) {
+      return quicksort(t, 0, t.length - 1, limit);
+    } else {
+      return quicksortWithShellSort(t, 0, t.length - 1, threshold, limit);
+    }
+  }
+
   /**
    * Test the quicksort algorithm with a threshold to switch to shell sort.
    *
@@ -1,15 +1,44 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
 /**
  * The Compress class provides methods for compressing and decompressing files
- * using a combination of Huffman coding and LZ78.
+ * using LZ77 (or LZ78) followed by Huffman coding, on independent blocks in parallel.
+ * Files are streamed through CompressOutputStream and DecompressInputStream, so memory use stays constant.
  */
 public class Compress {
+  static final int MAGIC = 0x4C5A4804; // "LZH" and format version 4, starts every compressed file
+  static final int INDEX_MAGIC = 0x4C5A4849; // "LZHI", ends a compressed file that has a seek index
+  static final int ARCHIVE_MAGIC = 0x4C5A4841; // "LZHA", starts and ends an archive of many files
+  static final int BLOCK_SIZE = 1 << 20; // Bytes of input compressed independently of the rest
+  static final int MAX_CODE_LENGTH = 24; // Longest Huffman code, short enough to fit the 64 bit bit buffers
+  static final int METHOD_LZ78 = 0; // First byte of a block whose first stage is LZ78
+  static final int METHOD_LZ77 = 1; // First byte of a block whose first stage is LZ77
+  static final int RANGE_CODED = 0x80; // Added to the first byte of a block coded with RangeEncoder, not Huffman
+  static final int DEFAULT_LEVEL = 6; // Compression level used when none is given, see LZ77.LEVELS
   /**
    * The Node class represents nodes in the Huffman tree.
    * Each node has a value (frequency of character) and a character associated with it.
@@ -46,7 +75,7 @@ public class Compress {
    * @param freq The frequencies of each character.
    * @return The root node of the Huffman tree.
    */
-  private static Node buildTree(int[] freq) {
+  static Node buildTree(int[] freq) {
     PriorityQueue<Node> nodes = new PriorityQueue<>();
     for (char i = 0; i < 256; i++) {
       if (freq[i] > 0) {
@@ -62,22 +91,115 @@ public class Compress {
     return nodes.poll();
   }
   /**
-   * Generates Huffman codes for each character by traversing the Huffman tree.
+   * Finds the length of the Huffman code of each character by traversing the Huffman tree.
    *
    * @param root The root node of the Huffman tree.
-   * @param prefix The current Huffman code being built.
-   * @param st The array storing the Huffman code for each character.
+   * @param depth The depth of the root node.
+   * @param lengths The array storing the code length for each character.
    */
-  private static void writeCodes(Node root, StringBuilder prefix, String[] st) {
+  private static void writeLengths(Node root, int depth, int[] lengths) {
     if (!isLeaf(root)) {
-      writeCodes(root.left, prefix.append('0'), st);
-      prefix.deleteCharAt(prefix.length() - 1);
-
-      writeCodes(root.right, prefix.append('1'), st);
-      prefix.deleteCharAt(prefix.length() - 1);
+      writeLengths(root.left, depth + 1, lengths);
+      writeLengths(root.right, depth + 1, lengths);
     } else {
-      st[root.ch] = prefix.toString();
+      lengths[root.ch] = Math.max(depth, 1); // A single character still needs one bit
+    }
+  }
+
+  /**
+   * Calculates Huffman code lengths for the given frequencies, limited to MAX_CODE_LENGTH bits.
+   * If the tree is too deep, the frequencies are halved, which flattens the tree, until it fits.
+   *
+   * @param freq The frequencies of each character.
+   * @return The code length of each character, 0 for characters that do not occur.
+   */
+  static int[] codeLengths(int[] freq) {
+    int[] scaled = freq.clone();
+    while (true) {
+      int[] lengths = new int[256];
+      Node root = buildTree(scaled);
+      if (root == null) return lengths;
+      writeLengths(root, 0, lengths);
+      if (Arrays.stream(lengths).max().getAsInt() <= MAX_CODE_LENGTH) return lengths;
+      for (int i = 0; i < 256; i++) {
+        if (scaled[i] > 0) scaled[i] = (scaled[i] >> 1) | 1;
+      }
+    }
+  }
+
+  /**
+   * Assigns canonical Huffman codes from code lengths. Codes are given in order of length, and characters with
+   * the same length get consecutive codes in character order, so the lengths alone describe the codes.
+   *
+   * @param lengths The code length of each character.
+   * @return The code of each character, right-aligned in an int.
+   */
+  static int[] canonicalCodes(int[] lengths) {
+    int[] count = new int[MAX_CODE_LENGTH + 1];
+    for (int length : lengths) {
+      if (length > 0) count[length]++;
+    }
+    int[] next = new int[MAX_CODE_LENGTH + 2];
+    for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+      next[length + 1] = (next[length] + count[length]) << 1;
     }
+    int[] codes = new int[256];
+    for (int i = 0; i < 256; i++) {
+      if (lengths[i] > 0) codes[i] = next[lengths[i]]++;
+    }
+    return codes;
+  }
+
+  /**
+   * Writes the header of a compressed file: the number of symbols, a bitmap of the characters that occur and the
+   * code length of each of them.
+   *
+   * @param out The stream to write to.
+   * @param symbols The number of encoded symbols.
+   * @param lengths The code length of each character.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static void writeHeader(DataOutputStream out, int symbols, int[] lengths) throws IOException {
+    out.writeInt(symbols);
+    for (int i = 0; i < 256; i += 8) {
+      int bitmap = 0;
+      for (int j = 0; j < 8; j++) {
+        if (lengths[i + j] > 0) bitmap |= 1 << (7 - j);
+      }
+      out.writeByte(bitmap);
+    }
+    for (int i = 0; i < 256; i++) {
+      if (lengths[i] > 0) out.writeByte(lengths[i]);
+    }
+  }
+
+  /**
+   * Reads the code lengths from the header of a compressed file, after the number of symbols.
+   * The lengths must form a complete prefix code, as every Huffman tree does: the sum of 2^-length over all
+   * characters is exactly 1. More would give codes that overlap, less would leave bit patterns without a
+   * character. The only exceptions are a block with a single character, which gets a one bit code, and an
+   * empty block without characters.
+   *
+   * @param in The stream to read from.
+   * @return The code length of each character.
+   * @throws IOException if an I/O error occurs or the header is invalid.
+   */
+  private static int[] readLengths(DataInputStream in) throws IOException {
+    byte[] bitmap = new byte[32];
+    in.readFully(bitmap);
+    int[] lengths = new int[256];
+    int used = 0;
+    long kraft = 0; // Sum of 2^-length in units of 2^-MAX_CODE_LENGTH
+    for (int i = 0; i < 256; i++) {
+      if ((bitmap[i >> 3] & (0x80 >>> (i & 7))) != 0) {
+        lengths[i] = in.readUnsignedByte();
+        if (lengths[i] < 1 || lengths[i] > MAX_CODE_LENGTH) throw new IOException("Invalid Huffman code length");
+        used++;
+        kraft += 1L << (MAX_CODE_LENGTH - lengths[i]);
+      }
+    }
+    if (used > 1 && kraft != 1L << MAX_CODE_LENGTH) throw new IOException("Invalid Huffman code lengths");
+    return lengths;
   }
   /**
    * Checks if the given node is a leaf node in the Huffman tree.
@@ -89,409 +211,2221 @@ public class Compress {
     return (x.left == null && x.right == null);
   }
   /**
-   * Compresses the input file using Huffman coding and writes the compressed data to the output file.
+   * Compresses the input file at the default level and writes the compressed data to the output file.
    *
    * @param inputFile The path to the file to be compressed.
    * @param outputFile The path to the file to write the compressed data.
    * @throws IOException if an I/O error occurs.
    */
-   public static void compress(String inputFile, String outputFile) throws IOException {
-    // LZ78 compression
-    String inputData = new String(Files.readAllBytes(Paths.get(inputFile)));
-    List<LZ78.Token> lz78Tokens = LZ78.compress(inputData);
-    byte[] lz78CompressedData = LZ78.serializeLZ78Tokens(lz78Tokens);
+  public static void compress(String inputFile, String outputFile) throws IOException {
+    compress(inputFile, outputFile, DEFAULT_LEVEL, false, null);
+  }
+
+  /**
+   * Compresses the input file and writes the compressed data to the output file.
+   * The file is streamed through a CompressOutputStream, so memory use does not depend on the file size.
+   *
+   * @param inputFile The path to the file to be compressed.
+   * @param outputFile The path to the file to write the compressed data.
+   * @param level The compression level, 0 for LZ78 or 1 (fastest) to 9 (smallest) for LZ77.
+   * @param rangeCoded True to use the adaptive range coder instead of Huffman coding.
+   * @param listener Receives progress reports a few times per second, or null for no progress reporting.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static void compress(String inputFile, String outputFile, int level, boolean rangeCoded,
+                              ProgressListener listener) throws IOException {
+    try (Progress progress = new Progress(Files.size(Paths.get(inputFile)), listener);
+         InputStream in = new FileInputStream(inputFile);
+         CompressOutputStream out = new CompressOutputStream(new FileOutputStream(outputFile), true, level, rangeCoded)) {
+      byte[] buffer = new byte[1 << 16];
+      for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+        out.write(buffer, 0, n);
+        progress.add(n);
+      }
+    }
+  }
+
+  /**
+   * Compresses one block with LZ77 or LZ78 followed by canonical Huffman coding of the resulting bytes.
+   *
+   * @param input The bytes to compress.
+   * @param offset The index of the first byte of the block.
+   * @param length The number of bytes in the block.
+   * @param level The compression level, 0 for LZ78 or 1 to 9 for LZ77.
+   * @return The compressed block: the method byte, the Huffman header and the encoded bits.
+   * @throws IOException if an I/O error occurs.
+   */
+  static byte[] compressBlock(byte[] input, int offset, int length, int level) throws IOException {
+    return compressBlock(input, offset, length, level, false);
+  }
 
-    // Frequency calculation for Huffman compression on LZ78 bytes
+  /**
+   * Compresses one block with LZ77 or LZ78 followed by Huffman or range coding of the resulting bytes.
+   *
+   * @param input The bytes to compress.
+   * @param offset The index of the first byte of the block.
+   * @param length The number of bytes in the block.
+   * @param level The compression level, 0 for LZ78 or 1 to 9 for LZ77.
+   * @param rangeCoded True to use the adaptive range coder instead of Huffman coding.
+   * @return The compressed block: the method byte, the symbol count, the Huffman code lengths if Huffman coded,
+   *         and the encoded bytes.
+   * @throws IOException if an I/O error occurs.
+   */
+  static byte[] compressBlock(byte[] input, int offset, int length, int level, boolean rangeCoded)
+      throws IOException {
+    int method = level == 0 ? METHOD_LZ78 : METHOD_LZ77;
+
+    // LZ77 or LZ78 compression
+    byte[] tokens = level == 0
+        ? LZ78.compress(input, offset, length)
+        : LZ77.compress(input, offset, length, level);
+
+    if (rangeCoded) {
+      // Adaptive range coding needs no header apart from the symbol count
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(tokens.length / 2 + 64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(method | RANGE_CODED);
+      out.writeInt(tokens.length);
+      RangeEncoder encoder = new RangeEncoder(out);
+      for (byte b : tokens) {
+        encoder.encode(b & 0xFF);
+      }
+      encoder.finish();
+      return bytes.toByteArray();
+    }
+
+    // Frequency calculation for Huffman compression on the first stage bytes
     int[] freq = new int[256];
-    for (byte b : lz78CompressedData) {
+    for (byte b : tokens) {
       freq[b & 0xFF]++;
     }
 
-    // The root node of the Huffman tree.
-    Node root = buildTree(freq);
-    String[] st = new String[256];
-    StringBuilder prefix = new StringBuilder();
-    writeCodes(root, prefix, st);
+    // Canonical Huffman codes, described by their lengths alone
+    int[] lengths = codeLengths(freq);
+    int[] codes = canonicalCodes(lengths);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(tokens.length / 2 + 64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(method);
+    writeHeader(out, tokens.length, lengths);
+
+    // Huffman compression of the first stage bytes
+    BitWriter bits = new BitWriter(out);
+    for (byte b : tokens) {
+      bits.write(codes[b & 0xFF], lengths[b & 0xFF]);
+    }
+    bits.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decompresses the input file and writes the decompressed data to the output file.
+   *
+   * @param inputFile The path to the file to be decompressed.
+   * @param outputFile The path to the file to write the decompressed data.
+   * @throws IOException if an I/O error occurs or the file is not a compressed file.
+   */
+  public static void decompress(String inputFile, String outputFile) throws IOException {
+    decompress(inputFile, outputFile, null);
+  }
+
+  /**
+   * Decompresses the input file and writes the decompressed data to the output file.
+   * The file is streamed through a DecompressInputStream, so memory use does not depend on the file size.
+   * Progress is measured in bytes of the compressed file read.
+   *
+   * @param inputFile The path to the file to be decompressed.
+   * @param outputFile The path to the file to write the decompressed data.
+   * @param listener Receives progress reports a few times per second, or null for no progress reporting.
+   * @throws IOException if an I/O error occurs or the file is not a compressed file.
+   */
+  public static void decompress(String inputFile, String outputFile, ProgressListener listener)
+      throws IOException {
+    try (Progress progress = new Progress(Files.size(Paths.get(inputFile)), listener);
+         FileInputStream file = new FileInputStream(inputFile);
+         InputStream in = new DecompressInputStream(file);
+         OutputStream out = new FileOutputStream(outputFile)) {
+      byte[] buffer = new byte[1 << 16];
+      for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+        out.write(buffer, 0, n);
+        if (progress.isEnabled()) progress.set(file.getChannel().position());
+      }
+    }
+  }
+
+
+  /**
+   * Returns the largest number of first stage bytes a block can have. LZ78 writes at most 3 bytes for every
+   * byte of input, a 16 bit index and a byte per token, and LZ77 less than 2.
+   *
+   * @param blockSize The largest number of original bytes in a block.
+   * @return The largest number of LZ77 or LZ78 bytes for a block of that size.
+   */
+  static long maxTokens(int blockSize) {
+    return 3L * blockSize + 8;
+  }
+
+  /**
+   * Returns the largest size of a compressed block: the header with every code length, and at most 8 bytes per
+   * first stage byte, which covers Huffman codes of MAX_CODE_LENGTH bits and range coded bytes at the lowest
+   * probability the model allows.
+   *
+   * @param blockSize The largest number of original bytes in a block.
+   * @return The largest number of bytes compressBlock returns for a block of that size.
+   */
+  static long maxCompressedLength(int blockSize) {
+    return 1 + 4 + 32 + 256 + 8 * maxTokens(blockSize) + 16;
+  }
+
+  /**
+   * Decompresses one block written by compressBlock, trusting the lengths it holds.
+   *
+   * @param data The array holding the block.
+   * @param offset The index of the first byte of the block.
+   * @param length The number of bytes in the block.
+   * @return The decompressed bytes.
+   * @throws IOException if the block is invalid.
+   */
+  static byte[] decompressBlock(byte[] data, int offset, int length) throws IOException {
+    return decompressBlock(data, offset, length, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Decompresses one block written by compressBlock. The lengths in the block are checked against the largest
+   * block that can be expected before anything is allocated, so corrupt data cannot claim huge arrays.
+   *
+   * @param data The array holding the block.
+   * @param offset The index of the first byte of the block.
+   * @param length The number of bytes in the block.
+   * @param maxLength The largest number of original bytes the block can hold.
+   * @return The decompressed bytes.
+   * @throws IOException if the block is invalid.
+   * @throws IllegalArgumentException if the coded data does not match its header.
+   */
+  static byte[] decompressBlock(byte[] data, int offset, int length, int maxLength) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+    int methodByte = in.readUnsignedByte();
+    int method = methodByte & ~RANGE_CODED;
+    if (method != METHOD_LZ78 && method != METHOD_LZ77) throw new IOException("Unknown block method " + method);
+    int symbols = in.readInt();
+    if (symbols < 0 || symbols > maxTokens(maxLength)) throw new IOException("Invalid symbol count " + symbols);
+    byte[] tokens = new byte[symbols];
+
+    if ((methodByte & RANGE_CODED) != 0) {
+      int headerLength = length - in.available();
+      new RangeDecoder(data, offset + headerLength, offset + length).decode(tokens, 0, symbols);
+    } else {
+      int[] lengths = readLengths(in);
+      int headerLength = length - in.available();
+
+      // Huffman decompression, decoding exactly as many symbols as were written so padding bits are never decoded
+      new HuffmanDecoder(lengths, data, offset + headerLength, offset + length).decode(tokens, 0, symbols);
+    }
+
+    // LZ77 or LZ78 decompression
+    return method == METHOD_LZ77 ? LZ77.decompress(tokens, maxLength) : LZ78.decompress(tokens, maxLength);
+  }
+
+  /**
+   * Checks decompressed data against the CRC32C stored when it was compressed.
+   *
+   * @param data The decompressed bytes.
+   * @param checksum The stored checksum.
+   * @throws IOException if the checksums differ.
+   */
+  static void verifyChecksum(byte[] data, int checksum) throws IOException {
+    CRC32C crc = new CRC32C();
+    crc.update(data, 0, data.length);
+    if ((int) crc.getValue() != checksum) throw new IOException("Block checksum mismatch");
+  }
+
+  /**
+   * Waits for a block task and returns its result, unwrapping the exception if it failed.
+   *
+   * @param task The task.
+   * @return The result of the task.
+   * @throws IOException if the task failed with an IOException.
+   */
+  private static byte[] join(Future<byte[]> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a block");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      // ForkJoinPool wraps checked exceptions thrown by a Callable in one or more RuntimeExceptions
+      for (Throwable t = cause; t != null; t = t.getCause()) {
+        if (t instanceof IOException) throw (IOException) t;
+      }
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException(cause);
+    }
+  }
 
-    // Write the frequency table and Huffman codes to the output file
-    try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(outputFile))) {
-      oos.writeObject(freq);
+  /**
+   * An OutputStream that compresses everything written to it.
+   * Input is collected into blocks of BLOCK_SIZE bytes, and each full block is compressed on the common
+   * ForkJoinPool while the next one is filled. At most one block per worker thread is in flight, and blocks
+   * are written in order as they complete, so memory use is bounded by a few blocks whatever the input size.
+   * The output starts with MAGIC and the block size, holds one frame per block and ends with an empty frame.
+   * A frame is the original length, the compressed length and the CRC32C of the original bytes, followed by the
+   * compressed block. The empty frame is followed by the CRC32C of all the original bytes. Optionally a seek
+   * index follows: the number of blocks, then for each block its offset in the original data and the offset of
+   * its frame in the compressed data, and finally the offset of the index and INDEX_MAGIC.
+   * Calling flush() ends the block being filled, however short it is, so frequent flushes give small blocks and
+   * a worse compression ratio. Streams that are only written and closed always get full blocks.
+   */
+  static class CompressOutputStream extends OutputStream {
+    private final DataOutputStream out; // The stream the frames are written to
+    private final boolean writeIndex; // True if a seek index is written after the last frame
+    private final int level; // Compression level of every block
+    private final boolean rangeCoded; // True if blocks are range coded instead of Huffman coded
+    private long[] rawOffsets = new long[16]; // Offset of each block in the original data
+    private long[] frameOffsets = new long[16]; // Offset of each frame in the compressed data
+    private int blockCount; // Number of frames written
+    private long rawPosition; // Number of original bytes in the frames written
+    private long framePosition = 8; // Number of compressed bytes written, starting after the header
+    private final int maxInFlight; // Largest number of blocks being compressed at once
+    private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>(); // Blocks being compressed, in order
+    private final ArrayDeque<Integer> inFlightLengths = new ArrayDeque<>(); // Original length of those blocks
+    private final ArrayDeque<Integer> inFlightChecksums = new ArrayDeque<>(); // CRC32C of those blocks
+    private final CRC32C blockChecksum = new CRC32C(); // Checksum of the block being submitted
+    private final CRC32C streamChecksum = new CRC32C(); // Checksum of all blocks submitted
+    private byte[] block = new byte[1 << 16]; // The block being filled, grown up to BLOCK_SIZE as needed
+    private int position; // Number of bytes in the block being filled
+    private boolean closed; // True once the stream has been closed
 
-      // Huffman compression of LZ78 bytes
-      BitOutputStream bos = new BitOutputStream(oos);
-      long totalBytes = lz78CompressedData.length;
-      long processedBytes = 0;
+    /**
+     * Constructs a compressing stream with a seek index and writes the file header.
+     *
+     * @param out The stream to write the compressed data to.
+     * @throws IOException if an I/O error occurs.
+     */
+    public CompressOutputStream(OutputStream out) throws IOException {
+      this(out, true, DEFAULT_LEVEL, false);
+    }
 
-      // Initialize progress bar with 0% completion
-      printProgressBar(processedBytes, totalBytes);
+    /**
+     * Constructs a compressing stream and writes the file header.
+     *
+     * @param out The stream to write the compressed data to.
+     * @param writeIndex True to write a seek index that allows reading parts of the data with CompressedFile.
+     * @param level The compression level, 0 for LZ78 or 1 (fastest) to 9 (smallest) for LZ77.
+     * @param rangeCoded True to use the adaptive range coder instead of Huffman coding.
+     * @throws IOException if an I/O error occurs.
+     */
+    public CompressOutputStream(OutputStream out, boolean writeIndex, int level, boolean rangeCoded)
+        throws IOException {
+      if (level < 0 || level >= LZ77.LEVELS.length) throw new IllegalArgumentException("Invalid level " + level);
+      this.writeIndex = writeIndex;
+      this.level = level;
+      this.rangeCoded = rangeCoded;
+      this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+      this.maxInFlight = ForkJoinPool.commonPool().getParallelism() + 1;
+      this.out.writeInt(MAGIC);
+      this.out.writeInt(BLOCK_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (position == block.length) growOrSubmit();
+      block[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (position == block.length) growOrSubmit();
+        int n = Math.min(len, block.length - position);
+        System.arraycopy(b, off, block, position, n);
+        position += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    /**
+     * Compresses the buffered bytes as a block, which may be shorter than BLOCK_SIZE, and writes all blocks.
+     * The short block is compressed on its own, so flushing often lowers the compression ratio.
+     */
+    @Override
+    public void flush() throws IOException {
+      submitBlock();
+      while (!inFlight.isEmpty()) writeOldestBlock();
+      out.flush();
+    }
+
+    /**
+     * Writes all remaining blocks and the end of the file, and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      try {
+        flush();
+        out.writeInt(0);
+        out.writeInt((int) streamChecksum.getValue());
+        if (writeIndex) {
+          long indexOffset = framePosition + 8;
+          out.writeInt(blockCount);
+          for (int i = 0; i < blockCount; i++) {
+            out.writeLong(rawOffsets[i]);
+            out.writeLong(frameOffsets[i]);
+          }
+          out.writeLong(indexOffset);
+          out.writeInt(INDEX_MAGIC);
+        }
+      } finally {
+        out.close();
+      }
+    }
 
-      for (byte b : lz78CompressedData) {
-        String code = st[b & 0xFF];
-        for (int i = 0; i < code.length(); i++) {
-          bos.write(code.charAt(i) == '1');
+    /**
+     * Makes room in the full block buffer: doubles it if it is smaller than BLOCK_SIZE, and compresses it
+     * otherwise. Starting small keeps the cost of compressing a small file low.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void growOrSubmit() throws IOException {
+      if (block.length < BLOCK_SIZE) {
+        block = Arrays.copyOf(block, Math.min(2 * block.length, BLOCK_SIZE));
+      } else {
+        submitBlock();
+      }
+    }
+
+    /**
+     * Starts compressing the block being filled, first writing the oldest block if too many are in flight.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void submitBlock() throws IOException {
+      if (position == 0) return;
+      if (inFlight.size() == maxInFlight) writeOldestBlock();
+      byte[] full = block;
+      int length = position;
+      inFlight.add(ForkJoinPool.commonPool().submit(() -> compressBlock(full, 0, length, level, rangeCoded)));
+      inFlightLengths.add(length);
+      blockChecksum.reset();
+      blockChecksum.update(full, 0, length);
+      inFlightChecksums.add((int) blockChecksum.getValue());
+      streamChecksum.update(full, 0, length);
+      block = new byte[block.length];
+      position = 0;
+    }
+
+    /**
+     * Waits for the oldest block in flight and writes its frame.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void writeOldestBlock() throws IOException {
+      byte[] compressed = join(inFlight.poll());
+      int length = inFlightLengths.poll();
+      if (blockCount == rawOffsets.length) {
+        rawOffsets = Arrays.copyOf(rawOffsets, 2 * blockCount);
+        frameOffsets = Arrays.copyOf(frameOffsets, 2 * blockCount);
+      }
+      rawOffsets[blockCount] = rawPosition;
+      frameOffsets[blockCount] = framePosition;
+      blockCount++;
+      rawPosition += length;
+      framePosition += 12 + compressed.length;
+      out.writeInt(length);
+      out.writeInt(compressed.length);
+      out.writeInt(inFlightChecksums.poll());
+      out.write(compressed);
+    }
+  }
+
+  /**
+   * An InputStream that decompresses data written by a CompressOutputStream.
+   * Frames are read ahead and decompressed on the common ForkJoinPool, at most one per worker thread,
+   * and handed out in order, so memory use is bounded by a few blocks whatever the input size.
+   * Every block is checked against its CRC32C by the worker that decompresses it, and the checksum of the whole
+   * stream is checked before the end of the stream is reported, so corrupt or truncated data is never silently
+   * returned as complete.
+   */
+  static class DecompressInputStream extends InputStream {
+    private final DataInputStream in; // The stream the frames are read from
+    private final int blockSize; // Largest number of original bytes in a block, from the header
+    private final int maxInFlight; // Largest number of blocks being decompressed at once
+    private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>(); // Blocks being decompressed, in order
+    private byte[] block = new byte[0]; // The decompressed block being read
+    private int position; // Index of the next byte to return from block
+    private boolean endOfFrames; // True once the empty frame has been read
+    private int expectedChecksum; // CRC32C of the whole stream, read after the empty frame
+    private final CRC32C streamChecksum = new CRC32C(); // Checksum of the blocks returned so far
+    private int blockCount; // Number of frames read
+
+    /**
+     * Constructs a decompressing stream and checks the file header.
+     *
+     * @param in The stream to read the compressed data from.
+     * @throws IOException if an I/O error occurs or the data is not compressed data.
+     */
+    public DecompressInputStream(InputStream in) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+      this.maxInFlight = ForkJoinPool.commonPool().getParallelism() + 1;
+      if (this.in.readInt() != MAGIC) throw new IOException("Not a compressed file");
+      this.blockSize = this.in.readInt();
+      // Larger blocks are never written, and would let a corrupt frame header claim more memory
+      if (blockSize <= 0 || blockSize > BLOCK_SIZE) throw new IOException("Invalid block size " + blockSize);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (position == block.length && !nextBlock()) return -1;
+      return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (position == block.length && !nextBlock()) return -1;
+      int n = Math.min(len, block.length - position);
+      System.arraycopy(block, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inFlight.clear();
+      in.close();
+    }
+
+    /**
+     * Moves on to the next decompressed block, reading frames ahead to keep the workers busy.
+     *
+     * @return False if there are no more blocks.
+     * @throws IOException if an I/O error occurs or a frame is invalid.
+     */
+    private boolean nextBlock() throws IOException {
+      while (!endOfFrames && inFlight.size() < maxInFlight) {
+        int length = in.readInt();
+        if (length == 0) {
+          endOfFrames = true;
+          expectedChecksum = in.readInt();
+          break;
+        }
+        int compressedLength = in.readInt();
+        int checksum = in.readInt();
+        int block = blockCount++;
+        if (length < 0 || length > blockSize || compressedLength < 0
+            || compressedLength > maxCompressedLength(blockSize)) {
+          throw new IOException("Corrupt block header in block " + block);
+        }
+        byte[] compressed = new byte[compressedLength];
+        in.readFully(compressed);
+        inFlight.add(ForkJoinPool.commonPool().submit(() -> {
+          byte[] decompressed;
+          try {
+            decompressed = decompressBlock(compressed, 0, compressed.length, length);
+          } catch (RuntimeException e) {
+            throw new IOException("Corrupt block " + block, e);
+          }
+          if (decompressed.length != length) throw new IOException("Block length does not match its header");
+          verifyChecksum(decompressed, checksum);
+          return decompressed;
+        }));
+      }
+      if (inFlight.isEmpty()) {
+        if ((int) streamChecksum.getValue() != expectedChecksum) throw new IOException("Stream checksum mismatch");
+        return false;
+      }
+      block = join(inFlight.poll());
+      streamChecksum.update(block, 0, block.length);
+      position = 0;
+      return true;
+    }
+  }
+
+  /**
+   * Random access to the original data of a compressed file with a seek index.
+   * The file is memory-mapped once, and a read only decompresses and verifies the blocks it overlaps.
+   * The last block read is kept, so consecutive small reads from the same block decompress it once.
+   * The seek index and every frame header are checked against the file size and the block size before they are
+   * used, so a corrupt file gives an IOException.
+   */
+  static class CompressedFile implements Closeable {
+    private static final int SEGMENT_BITS = 30; // The file is mapped in 1 GB segments, a buffer holds at most 2 GB
+    private final FileChannel channel; // The compressed file
+    private final ByteBuffer[] segments; // The whole file, mapped once when it is opened
+    private final long[] rawOffsets; // Offset of each block in the original data, followed by the total length
+    private final long[] frameOffsets; // Offset of each frame in the compressed file
+    private final long indexOffset; // Offset of the seek index, frames end 8 bytes before it
+    private int cachedBlock = -1; // Index of the block in cachedData
+    private byte[] cachedData; // The last decompressed block
+
+    /**
+     * Opens a compressed file and reads its seek index.
+     *
+     * @param filename The compressed file.
+     * @throws IOException if an I/O error occurs or the file has no seek index.
+     */
+    public CompressedFile(String filename) throws IOException {
+      channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+      try {
+        long size = channel.size();
+        if (size < 20) throw new IOException("Not a compressed file with a seek index: " + filename);
+        segments = new ByteBuffer[(int) ((size + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS)];
+        for (int i = 0; i < segments.length; i++) {
+          long start = (long) i << SEGMENT_BITS;
+          segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << SEGMENT_BITS, size - start));
+        }
+        if (getInt(0) != MAGIC || getInt(4) != BLOCK_SIZE) {
+          throw new IOException("Not a compressed file: " + filename);
+        }
+        ByteBuffer footer = ByteBuffer.wrap(get(size - 12, 12));
+        long indexOffset = footer.getLong();
+        if (footer.getInt() != INDEX_MAGIC || indexOffset < 8 || indexOffset > size - 16) {
+          throw new IOException("Not a compressed file with a seek index: " + filename);
+        }
+        ByteBuffer index = ByteBuffer.wrap(get(indexOffset, (int) (size - 12 - indexOffset)));
+        int count = index.getInt();
+        if (count < 0 || index.remaining() != 16L * count) throw new IOException("Corrupt seek index in " + filename);
+        rawOffsets = new long[count + 1];
+        frameOffsets = new long[count];
+        for (int i = 0; i < count; i++) {
+          rawOffsets[i] = index.getLong();
+          frameOffsets[i] = index.getLong();
+          // Blocks follow each other with 1 to BLOCK_SIZE bytes each, and their frames lie before the end marker
+          long rawLength = rawOffsets[i] - (i == 0 ? 0 : rawOffsets[i - 1]);
+          if ((i == 0 ? rawLength != 0 : rawLength <= 0 || rawLength > BLOCK_SIZE)
+              || frameOffsets[i] < (i == 0 ? 8 : frameOffsets[i - 1] + 12) || frameOffsets[i] > indexOffset - 20) {
+            throw new IOException("Corrupt seek index in " + filename);
+          }
+        }
+        this.indexOffset = indexOffset;
+        int lastLength = count == 0 ? 0 : getInt(frameOffsets[count - 1]);
+        if (count > 0 && (lastLength <= 0 || lastLength > BLOCK_SIZE)) {
+          throw new IOException("Corrupt seek index in " + filename);
+        }
+        rawOffsets[count] = count == 0 ? 0 : rawOffsets[count - 1] + lastLength;
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Returns the length of the original data.
+     *
+     * @return The number of bytes in the original data.
+     */
+    public long length() {
+      return rawOffsets[rawOffsets.length - 1];
+    }
+
+    /**
+     * Reads a range of the original data, decompressing only the blocks it overlaps.
+     *
+     * @param offset The offset of the first byte in the original data.
+     * @param length The number of bytes to read. The range is cut off at the end of the data.
+     * @return The bytes read.
+     * @throws IOException if an I/O error occurs or a block is invalid.
+     */
+    public byte[] read(long offset, int length) throws IOException {
+      if (offset < 0 || length < 0) throw new IllegalArgumentException("Negative offset or length");
+      long end = Math.min(offset + length, length());
+      if (offset >= end) return new byte[0];
+      byte[] result = new byte[(int) (end - offset)];
+      int block = Arrays.binarySearch(rawOffsets, offset);
+      if (block < 0) block = -block - 2;
+      for (long position = offset; position < end; block++) {
+        byte[] data = block(block);
+        int from = (int) (position - rawOffsets[block]);
+        int n = (int) Math.min(data.length - from, end - position);
+        System.arraycopy(data, from, result, (int) (position - offset), n);
+        position += n;
+      }
+      return result;
+    }
+
+    /**
+     * Returns the decompressed data of a block.
+     *
+     * @param block The index of the block.
+     * @return The decompressed block.
+     * @throws IOException if an I/O error occurs or the block is invalid.
+     */
+    private byte[] block(int block) throws IOException {
+      if (block != cachedBlock) {
+        long frame = frameOffsets[block];
+        int length = getInt(frame);
+        int compressedLength = getInt(frame + 4);
+        int checksum = getInt(frame + 8);
+        if (length != rawOffsets[block + 1] - rawOffsets[block] || compressedLength < 0
+            || compressedLength > indexOffset - 8 - (frame + 12)) {
+          throw new IOException("Corrupt block header in block " + block);
+        }
+        byte[] compressed = get(frame + 12, compressedLength);
+        byte[] data;
+        try {
+          data = decompressBlock(compressed, 0, compressedLength, length);
+        } catch (RuntimeException e) {
+          throw new IOException("Corrupt block " + block, e);
+        }
+        if (data.length != length) throw new IOException("Block length does not match its header");
+        verifyChecksum(data, checksum);
+        cachedData = data;
+        cachedBlock = block;
+      }
+      return cachedData;
+    }
+
+    /**
+     * Copies bytes from the mapped file. Only absolute gets are used, so the buffers are never changed.
+     *
+     * @param position The offset of the first byte in the file.
+     * @param length The number of bytes to copy.
+     * @return The bytes.
+     */
+    private byte[] get(long position, int length) {
+      byte[] bytes = new byte[length];
+      for (int done = 0; done < length; ) {
+        ByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+        int from = (int) (position & ((1 << SEGMENT_BITS) - 1));
+        int n = Math.min(length - done, segment.capacity() - from);
+        segment.get(from, bytes, done, n);
+        done += n;
+        position += n;
+      }
+      return bytes;
+    }
+
+    /**
+     * Reads a big-endian int from the mapped file.
+     *
+     * @param position The offset of the int in the file.
+     * @return The int.
+     */
+    private int getInt(long position) {
+      ByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+      int from = (int) (position & ((1 << SEGMENT_BITS) - 1));
+      return from <= segment.capacity() - 4 ? segment.getInt(from) : ByteBuffer.wrap(get(position, 4)).getInt();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Archives hold many files compressed one by one, so one file can be extracted without the rest.
+   * The archive starts with ARCHIVE_MAGIC and holds each file as a complete compressed stream, as written by a
+   * CompressOutputStream without a seek index. A central directory follows: the number of files, then for each
+   * file its name relative to the archived directory, its size, and the offset and length of its stream.
+   * The archive ends with the offset of the directory and ARCHIVE_MAGIC.
+   * Files smaller than a block are compressed in parallel on a fixed pool of threads, with at most two files
+   * per thread in flight, so memory use is bounded however many files there are. Larger files are streamed
+   * straight into the archive, since their blocks are already compressed in parallel.
+   */
+  static class Archive {
+
+    /**
+     * One file in an archive.
+     */
+    static class Entry {
+      final String name; // Path relative to the archived directory, with / between directories
+      final long size; // Size of the original file
+      final long offset; // Offset of the compressed stream in the archive
+      final long compressedSize; // Length of the compressed stream
+
+      Entry(String name, long size, long offset, long compressedSize) {
+        this.name = name;
+        this.size = size;
+        this.offset = offset;
+        this.compressedSize = compressedSize;
+      }
+    }
+
+    /**
+     * An OutputStream that counts the bytes written through it and leaves the underlying stream open on close,
+     * so every file can be written to the archive through a CompressOutputStream of its own.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+      private long count; // Number of bytes written
+
+      CountingOutputStream(OutputStream out) {
+        super(out);
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    }
+
+    /**
+     * Compresses every file under a directory into an archive.
+     * The archive itself is skipped if it is written inside the directory.
+     *
+     * @param directory The directory to archive.
+     * @param archiveFile The archive to write (will be overwritten).
+     * @param level The compression level, 0 for LZ78 or 1 (fastest) to 9 (smallest) for LZ77.
+     * @return The entries written.
+     * @throws IOException if an I/O error occurs.
+     */
+    static List<Entry> create(String directory, String archiveFile, int level) throws IOException {
+      Path root = Paths.get(directory);
+      Path archive = Paths.get(archiveFile).toAbsolutePath().normalize();
+      List<Path> files;
+      try (Stream<Path> walk = Files.walk(root)) {
+        files = walk.filter(Files::isRegularFile)
+            .filter(path -> !path.toAbsolutePath().normalize().equals(archive))
+            .sorted()
+            .collect(Collectors.toList());
+      }
+      int threads = Runtime.getRuntime().availableProcessors();
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>(); // Small files being compressed, in order
+      ArrayDeque<Entry> inFlightEntries = new ArrayDeque<>(); // Name and size of those files
+      List<Entry> entries = new ArrayList<>(files.size());
+
+      try (OutputStream file = new BufferedOutputStream(new FileOutputStream(archiveFile), 1 << 16)) {
+        CountingOutputStream out = new CountingOutputStream(file);
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(ARCHIVE_MAGIC);
+
+        for (Path path : files) {
+          String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+          long size = Files.size(path);
+          if (size < BLOCK_SIZE) {
+            if (inFlight.size() == 2 * threads) writeOldest(out, inFlight, inFlightEntries, entries);
+            inFlight.add(pool.submit(() -> compressFile(path, level)));
+            inFlightEntries.add(new Entry(name, size, 0, 0));
+          } else {
+            while (!inFlight.isEmpty()) writeOldest(out, inFlight, inFlightEntries, entries);
+            long offset = out.count;
+            try (InputStream in = Files.newInputStream(path);
+                 CompressOutputStream compressed = new CompressOutputStream(out, false, level, false)) {
+              in.transferTo(compressed);
+            }
+            entries.add(new Entry(name, size, offset, out.count - offset));
+          }
+        }
+        while (!inFlight.isEmpty()) writeOldest(out, inFlight, inFlightEntries, entries);
+
+        // Central directory
+        long directoryOffset = out.count;
+        data.writeInt(entries.size());
+        for (Entry entry : entries) {
+          data.writeUTF(entry.name);
+          data.writeLong(entry.size);
+          data.writeLong(entry.offset);
+          data.writeLong(entry.compressedSize);
+        }
+        data.writeLong(directoryOffset);
+        data.writeInt(ARCHIVE_MAGIC);
+        data.flush();
+      } finally {
+        pool.shutdownNow();
+      }
+      return entries;
+    }
+
+    /**
+     * Compresses a small file into memory, in the same format as a CompressOutputStream without a seek index.
+     * The blocks are compressed on the calling thread, not handed to the common pool the way a
+     * CompressOutputStream does, so the pool the archive submits the file to does the work and its limit on
+     * files in flight also limits the work in flight. The file is normally a single block, but is split like
+     * any other stream if it grew after its size was read.
+     *
+     * @param path The file.
+     * @param level The compression level.
+     * @return The compressed stream.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static byte[] compressFile(Path path, int level) throws IOException {
+      byte[] input = Files.readAllBytes(path);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(input.length / 2 + 64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeInt(BLOCK_SIZE);
+      CRC32C blockChecksum = new CRC32C();
+      for (int offset = 0; offset < input.length; offset += BLOCK_SIZE) {
+        int length = Math.min(BLOCK_SIZE, input.length - offset);
+        byte[] compressed = compressBlock(input, offset, length, level, false);
+        blockChecksum.reset();
+        blockChecksum.update(input, offset, length);
+        out.writeInt(length);
+        out.writeInt(compressed.length);
+        out.writeInt((int) blockChecksum.getValue());
+        out.write(compressed);
+      }
+      CRC32C streamChecksum = new CRC32C();
+      streamChecksum.update(input, 0, input.length);
+      out.writeInt(0);
+      out.writeInt((int) streamChecksum.getValue());
+      return bytes.toByteArray();
+    }
+
+    /**
+     * Waits for the oldest small file in flight and writes it to the archive.
+     *
+     * @param out The archive.
+     * @param inFlight The files being compressed, in order.
+     * @param inFlightEntries Name and size of those files.
+     * @param entries The entries written, which the file is added to.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static void writeOldest(CountingOutputStream out, ArrayDeque<Future<byte[]>> inFlight,
+                                    ArrayDeque<Entry> inFlightEntries, List<Entry> entries) throws IOException {
+      byte[] compressed = join(inFlight.poll());
+      Entry entry = inFlightEntries.poll();
+      entries.add(new Entry(entry.name, entry.size, out.count, compressed.length));
+      out.write(compressed);
+    }
+
+    /**
+     * Reads the central directory of an archive.
+     *
+     * @param archiveFile The archive.
+     * @return The entries, in the order they were written.
+     * @throws IOException if an I/O error occurs or the file is not an archive.
+     */
+    static List<Entry> list(String archiveFile) throws IOException {
+      try (FileChannel channel = FileChannel.open(Paths.get(archiveFile), StandardOpenOption.READ)) {
+        long size = channel.size();
+        if (size < 20) throw new IOException("Not an archive: " + archiveFile);
+        ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - 12, 12);
+        long directoryOffset = footer.getLong();
+        if (footer.getInt() != ARCHIVE_MAGIC || directoryOffset < 4 || directoryOffset > size - 16) {
+          throw new IOException("Not an archive: " + archiveFile);
+        }
+        byte[] directory = new byte[(int) (size - 12 - directoryOffset)];
+        channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, directory.length).get(directory);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(directory));
+        int count = in.readInt();
+        if (count < 0) throw new IOException("Corrupt archive directory in " + archiveFile);
+        List<Entry> entries = new ArrayList<>(Math.min(count, directory.length));
+        for (int i = 0; i < count; i++) {
+          entries.add(new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readLong()));
+        }
+        return entries;
+      }
+    }
+
+    /**
+     * Decompresses one file from an archive, reading only its own compressed stream.
+     *
+     * @param archiveFile The archive.
+     * @param name The name of the file, as given by list.
+     * @param out The stream to write the file to.
+     * @return The number of bytes written.
+     * @throws IOException if an I/O error occurs, the file is not in the archive or its size does not match the
+     *                     directory.
+     */
+    static long extract(String archiveFile, String name, OutputStream out) throws IOException {
+      Entry entry = null;
+      for (Entry e : list(archiveFile)) {
+        if (e.name.equals(name)) entry = e;
+      }
+      if (entry == null) throw new FileNotFoundException("No file " + name + " in " + archiveFile);
+
+      try (FileChannel channel = FileChannel.open(Paths.get(archiveFile), StandardOpenOption.READ)) {
+        channel.position(entry.offset);
+        long written;
+        try (InputStream in = new DecompressInputStream(Channels.newInputStream(channel))) {
+          written = in.transferTo(out);
+        }
+        if (written != entry.size) {
+          throw new IOException("Extracted " + written + " bytes of " + name + ", the directory says " + entry.size);
+        }
+        return written;
+      }
+    }
+  }
+
+  // Nested classes for bit manipulation
+
+  /**
+   * The BitWriter class writes codes of up to 32 bits to an OutputStream, most significant bit first.
+   * Codes are collected in a 64 bit register and moved to a byte buffer a 32 bit word at a time,
+   * and the buffer is written to the stream when it is full.
+   */
+  static class BitWriter implements AutoCloseable {
+    private final OutputStream out; // The stream to write to
+    private final byte[] buffer = new byte[1 << 16]; // Whole bytes not yet written to the stream
+    private int position; // Number of bytes in the buffer
+    private long bits; // Bits not yet moved to the buffer, in the low end
+    private int bitCount; // Number of bits in bits, always below 32 between calls
+
+    public BitWriter(OutputStream out) {
+      this.out = out;
+    }
+
+    /**
+     * Writes a code.
+     *
+     * @param code The code, right-aligned.
+     * @param length The number of bits in the code, at most 32.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(int code, int length) throws IOException {
+      bits = (bits << length) | (code & ((1L << length) - 1));
+      bitCount += length;
+      if (bitCount >= 32) {
+        bitCount -= 32;
+        int word = (int) (bits >>> bitCount);
+        if (position > buffer.length - 4) flushBuffer();
+        buffer[position] = (byte) (word >>> 24);
+        buffer[position + 1] = (byte) (word >>> 16);
+        buffer[position + 2] = (byte) (word >>> 8);
+        buffer[position + 3] = (byte) word;
+        position += 4;
+      }
+    }
+
+    /**
+     * Pads the last byte with zero bits and writes everything to the stream.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void finish() throws IOException {
+      while (bitCount > 0) {
+        int n = Math.min(bitCount, 8);
+        int b = (int) (bits >>> (bitCount - n)) << (8 - n);
+        bitCount -= n;
+        if (position == buffer.length) flushBuffer();
+        buffer[position++] = (byte) b;
+      }
+      flushBuffer();
+    }
+
+    /**
+     * Writes the buffered bytes to the stream.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void flushBuffer() throws IOException {
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+
+    /**
+     * Finishes the bits and closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+      finish();
+      out.close();
+    }
+  }
+
+  /**
+   * The RangeEncoder class compresses bytes in a single pass with an adaptive binary range coder.
+   * Each byte is coded as 8 binary decisions down a tree of 255 probabilities (an order-0 model). The
+   * probabilities start at 1/2 and move towards every bit that is coded, so no frequency table has to be
+   * collected or stored first, and output starts after the first few bytes. An order-1 model, with one tree
+   * per previous byte, adapts too slowly to pay off on blocks the size of the bundled files.
+   * The coder is the carry-less range coder with a one byte cache used by LZMA.
+   */
+  static class RangeEncoder {
+    static final int PROBABILITY_BITS = 11; // Probabilities are fractions of 1 << PROBABILITY_BITS
+    static final int ADAPT_SHIFT = 5; // Each bit moves its probability 1/32 of the way towards it
+    static final int MIN_PROBABILITY = 31; // Probabilities stay between this and 1 - this, so no bit is impossible
+    private final OutputStream out; // The stream to write to
+    private final byte[] buffer = new byte[1 << 16]; // Bytes not yet written to the stream
+    private int position; // Number of bytes in the buffer
+    private long written; // Number of bytes produced, including those still in the buffer
+    private final char[] probabilities = new char[256]; // Probability of a 0 bit at each node of the tree
+    private long low; // Lower end of the range, with a possible carry in bit 32
+    private int range = -1; // Width of the range, an unsigned int
+    private int cache; // Last byte that may still be changed by a carry
+    private long cacheSize = 1; // Number of bytes held back: the cache and the 0xFF bytes after it
+
+    public RangeEncoder(OutputStream out) {
+      this.out = out;
+      Arrays.fill(probabilities, (char) (1 << (PROBABILITY_BITS - 1)));
+    }
+
+    /**
+     * Codes a byte.
+     *
+     * @param b The byte, as an unsigned value.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void encode(int b) throws IOException {
+      for (int node = 1, i = 7; i >= 0; i--) {
+        // The bits are hard to predict, so both outcomes are computed without branches, selected by a mask
+        int bit = (b >>> i) & 1;
+        int mask = -bit;
+        int p = probabilities[node];
+        int bound = (range >>> PROBABILITY_BITS) * p;
+        low += bound & mask & 0xFFFFFFFFL;
+        range = (bound & ~mask) | ((range - bound) & mask);
+        probabilities[node] = (char) (p + ((target(bit) - p) >> ADAPT_SHIFT));
+        while ((range & 0xFF000000) == 0) {
+          range <<= 8;
+          shiftLow();
+        }
+        node = (node << 1) | bit;
+      }
+    }
+
+    /**
+     * Returns the probability a bit moves the probability of a 0 bit towards.
+     *
+     * @param bit The bit.
+     * @return Nearly 1 for a 0 bit and nearly 0 for a 1 bit, as fractions of 1 << PROBABILITY_BITS.
+     */
+    static int target(int bit) {
+      return bit == 0 ? (1 << PROBABILITY_BITS) - MIN_PROBABILITY : MIN_PROBABILITY;
+    }
+
+    /**
+     * Returns the number of bytes produced so far.
+     *
+     * @return The number of bytes, including those not yet written to the stream.
+     */
+    public long size() {
+      return written;
+    }
+
+    /**
+     * Writes the rest of the range and everything buffered to the stream.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void finish() throws IOException {
+      for (int i = 0; i < 5; i++) shiftLow();
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+
+    /**
+     * Moves the top byte of low out, holding back bytes that a later carry could still change.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    private void shiftLow() throws IOException {
+      if (low < 0xFF000000L || low > 0xFFFFFFFFL) {
+        int carry = (int) (low >>> 32);
+        int b = cache;
+        do {
+          if (position == buffer.length) {
+            out.write(buffer, 0, position);
+            position = 0;
+          }
+          buffer[position++] = (byte) (b + carry);
+          written++;
+          b = 0xFF;
+        } while (--cacheSize != 0);
+        cache = (int) (low >>> 24) & 0xFF;
+      }
+      cacheSize++;
+      low = (low & 0x00FFFFFFL) << 8;
+    }
+  }
+
+  /**
+   * The RangeDecoder class decodes bytes written by a RangeEncoder, adapting its model the same way.
+   * Reading past the end gives zero bytes, so the caller must know how many bytes to decode.
+   */
+  static class RangeDecoder {
+    private final byte[] data; // The bytes to read
+    private final int end; // Index after the last byte to read
+    private int position; // Index of the next byte to read
+    private final char[] probabilities = new char[256]; // Probability of a 0 bit at each node of the tree
+    private int range = -1; // Width of the range, an unsigned int
+    private int code; // Offset of the coded value from the lower end of the range, an unsigned int
+
+    RangeDecoder(byte[] data, int offset, int end) {
+      this.data = data;
+      this.position = offset;
+      this.end = end;
+      Arrays.fill(probabilities, (char) (1 << (RangeEncoder.PROBABILITY_BITS - 1)));
+      for (int i = 0; i < 5; i++) code = (code << 8) | nextByte();
+    }
+
+    /**
+     * Decodes bytes.
+     *
+     * @param out The array to decode into.
+     * @param offset The index of the first byte to decode.
+     * @param count The number of bytes to decode.
+     */
+    void decode(byte[] out, int offset, int count) {
+      for (int k = offset; k < offset + count; k++) {
+        int node = 1;
+        while (node < 256) {
+          int p = probabilities[node];
+          int bound = (range >>> RangeEncoder.PROBABILITY_BITS) * p;
+          // The bit is 1 if code is at least bound as unsigned ints, found without a branch like in the encoder
+          int bit = (int) (((code & 0xFFFFFFFFL) - (bound & 0xFFFFFFFFL)) >>> 63) ^ 1;
+          int mask = -bit;
+          code -= bound & mask;
+          range = (bound & ~mask) | ((range - bound) & mask);
+          probabilities[node] = (char) (p + ((RangeEncoder.target(bit) - p) >> RangeEncoder.ADAPT_SHIFT));
+          node = (node << 1) | bit;
+          if ((range & 0xFF000000) == 0) {
+            range <<= 8;
+            code = (code << 8) | nextByte();
+          }
         }
-
-        // Update progress after each byte is processed
-        processedBytes++;
-        printProgressBar(processedBytes, totalBytes);
+        out[k] = (byte) node;
       }
-      bos.close();
+    }
 
-      // Final call to ensure the progress bar shows 100%
-      printProgressBar(totalBytes, totalBytes);
-      System.out.println(); // Print a new line after progress bar
+    /**
+     * Reads the next byte, or zero past the end.
+     *
+     * @return The byte, as an unsigned value.
+     */
+    private int nextByte() {
+      return position < end ? data[position++] & 0xFF : 0;
     }
   }
+
   /**
-   * Decompresses the input file using Huffman coding and writes the decompressed data to the output file.
-   *
-   * @param inputFile The path to the file to be decompressed.
-   * @param outputFile The path to the file to write the decompressed data.
-   * @throws IOException if an I/O error occurs.
-   * @throws ClassNotFoundException if the class of a serialized object cannot be found.
+   * Decodes canonical Huffman codes with a lookup table. The next TABLE_BITS bits of the stream index the table,
+   * which gives the symbol and code length directly for all codes of at most TABLE_BITS bits.
+   * Longer codes are rare, and for them the code is compared against the first code of each longer length.
    */
- public static void decompress(String inputFile, String outputFile) throws IOException, ClassNotFoundException {
-    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(inputFile));
-    int[] freq = (int[]) ois.readObject();
-    Node root = buildTree(freq);
+  static class HuffmanDecoder {
+    private static final int TABLE_BITS = 11; // Bits resolved by one table lookup
+    private final int[] table = new int[1 << TABLE_BITS]; // symbol | length << 8, or 0 if the code is longer
+    private final int[] firstCode = new int[MAX_CODE_LENGTH + 1]; // The first canonical code of each length
+    private final int[] firstIndex = new int[MAX_CODE_LENGTH + 1]; // Index of that code's symbol in symbols
+    private final int[] count = new int[MAX_CODE_LENGTH + 1]; // Number of codes of each length
+    private final int[] symbols = new int[256]; // Symbols sorted by code length, then by value
+    private final int maxLength; // The longest code length in use
+    private final BitReader reader; // The encoded bits
 
-    BitInputStream bis = new BitInputStream(ois);
-    ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
-
-    long totalBytes = 0;
-    long processedBytes = 0;
-
-    // Calculate the total bytes to be processed
-    for (int f : freq) {
-        totalBytes += f;
+    /**
+     * Constructs a decoder for the given code lengths and encoded data.
+     *
+     * @param lengths The code length of each character.
+     * @param encoded The array holding the encoded bits.
+     * @param offset The index of the first encoded byte.
+     * @param end The index after the last encoded byte.
+     */
+    HuffmanDecoder(int[] lengths, byte[] encoded, int offset, int end) {
+      this.reader = new BitReader(encoded, offset, end);
+      int[] codes = canonicalCodes(lengths);
+      int max = 0;
+      for (int length : lengths) {
+        if (length > 0) count[length]++;
+        max = Math.max(max, length);
+      }
+      maxLength = max;
+      for (int length = 1, index = 0; length <= MAX_CODE_LENGTH; length++) {
+        firstIndex[length] = index;
+        index += count[length];
+      }
+      int[] next = firstIndex.clone();
+      for (int i = 0; i < 256; i++) {
+        int length = lengths[i];
+        if (length == 0) continue;
+        if (next[length] == firstIndex[length]) firstCode[length] = codes[i];
+        symbols[next[length]++] = i;
+        if (length <= TABLE_BITS) {
+          int first = codes[i] << (TABLE_BITS - length);
+          Arrays.fill(table, first, first + (1 << (TABLE_BITS - length)), i | length << 8);
+        }
+      }
     }
 
-    // Huffman decompression
-    while (true) {
-        try {
-            Node x = root;
-            while (!isLeaf(x)) {
-                boolean bit = bis.read();
-                if (bit) x = x.right;
-                else x = x.left;
-            }
-            byteOutput.write(x.ch);
-
-            // Update progress after each byte is processed
-            processedBytes++;
-            printProgressBar(processedBytes, totalBytes);
-        } catch (EOFException e) {
-            break;
+    /**
+     * Decodes a number of symbols.
+     *
+     * @param out The array to write the symbols to.
+     * @param offset The index of the first symbol in out.
+     * @param count The number of symbols to decode.
+     * @throws IllegalArgumentException if the data does not match the codes.
+     */
+    void decode(byte[] out, int offset, int count) {
+      for (int i = offset; i < offset + count; i++) {
+        int entry = table[reader.peek(TABLE_BITS)];
+        if (entry != 0) {
+          reader.skip(entry >>> 8);
+          out[i] = (byte) entry;
+        } else {
+          out[i] = (byte) decodeLong();
         }
+      }
     }
-    bis.close();
-    byte[] lz77CompressedData = byteOutput.toByteArray();
-
-    // LZ78 decompression
-    List<LZ78.Token> lz77Tokens = LZ78.deserializeLZ78Tokens(lz77CompressedData);
-    String lz77DecompressedData = LZ78.decompress(lz77Tokens);
-    Files.write(Paths.get(outputFile), lz77DecompressedData.getBytes());
-
-    // Final call to ensure the progress bar shows 100%
-    printProgressBar(totalBytes, totalBytes);
-    System.out.println();
-    System.out.println("Decompression complete"+ "\n");
-    System.out.println("Run command: 'diff + filname + filname' to check for differences");
-    System.out.println("If there is no output, the files are identical");
-}   
-
 
-  // Nested classes for bit manipulation
+    /**
+     * Decodes a code longer than TABLE_BITS bits.
+     *
+     * @return The symbol.
+     * @throws IllegalArgumentException if no code matches.
+     */
+    private int decodeLong() {
+      int bits = reader.peek(MAX_CODE_LENGTH);
+      for (int length = TABLE_BITS + 1; length <= maxLength; length++) {
+        int code = bits >>> (MAX_CODE_LENGTH - length);
+        if (code < firstCode[length] + this.count[length]) {
+          reader.skip(length);
+          return symbols[firstIndex[length] + code - firstCode[length]];
+        }
+      }
+      throw new IllegalArgumentException("Invalid Huffman code");
+    }
+  }
 
   /**
-   * The BitOutputStream class provides methods to write individual bits to an ObjectOutputStream.
+   * Reads bits from a byte array through a 64 bit buffer, most significant bit first.
+   * Reading past the end of the array gives zero bits.
    */
-  static class BitOutputStream implements AutoCloseable {
-    private final ObjectOutputStream oos;
-    private int currentByte;
-    private int numBitsFilled;
+  static class BitReader {
+    private final byte[] data; // The bytes to read
+    private final int end; // Index after the last byte to read
+    private int position; // Index of the next byte to load into the buffer
+    private long buffer; // Loaded bits, the next bit is the highest bit
+    private int bitCount; // Number of loaded bits
 
-    public BitOutputStream(ObjectOutputStream oos) {
-      this.oos = oos;
-      this.currentByte = 0;
-      this.numBitsFilled = 0;
+    BitReader(byte[] data, int offset, int end) {
+      this.data = data;
+      this.position = offset;
+      this.end = end;
     }
 
     /**
-     * Writes a bit to the stream.
+     * Returns the next bits without consuming them.
      *
-     * @param bit The bit to write (true for 1, false for 0).
-     * @throws IOException if an I/O error occurs.
+     * @param n The number of bits, between 1 and 56.
+     * @return The bits as an int.
      */
-    public void write(boolean bit) throws IOException {
-      if (bit) {
-        currentByte |= (1 << (7 - numBitsFilled));
-      }
-      numBitsFilled++;
-      if (numBitsFilled == 8) {
-        oos.write(currentByte);
-        currentByte = 0;
-        numBitsFilled = 0;
-      }
+    int peek(int n) {
+      if (bitCount < n) refill();
+      return (int) (buffer >>> (64 - n));
     }
+
     /**
-     * Closes the stream.
+     * Consumes bits that have been peeked.
+     *
+     * @param n The number of bits.
      */
+    void skip(int n) {
+      buffer <<= n;
+      bitCount -= n;
+    }
 
-    @Override
-    public void close() throws IOException {
-      while (numBitsFilled != 0) {
-        write(false);
+    /**
+     * Loads whole bytes until the buffer holds more than 56 bits.
+     */
+    private void refill() {
+      while (bitCount <= 56) {
+        if (position < end) {
+          buffer |= (data[position++] & 0xFFL) << (56 - bitCount);
+        }
+        bitCount += 8;
       }
-      oos.close();
     }
   }
 
   /**
-   * The BitInputStream class provides methods to read individual bits from an ObjectInputStream.
+   * Receives progress reports from a Progress.
    */
-  static class BitInputStream implements AutoCloseable {
-    private final ObjectInputStream ois;
-    private int currentByte;
-    private int numBitsRemaining;
+  interface ProgressListener {
     /**
-     * Constructs a new BitInputStream from the given ObjectInputStream.
-     * 
-     * @param ois The ObjectInputStream to read from.
-     * @throws IOException if an I/O error occurs.
+     * Called from the reporter thread a few times per second, and once more when the work is done.
+     *
+     * @param completed The number of bytes processed.
+     * @param total The total number of bytes.
+     * @param megabytesPerSecond The average throughput so far.
+     * @param etaNanos The estimated time left in nanoseconds, or -1 if nothing has been processed yet.
+     * @param done True for the last report.
      */
+    void progress(long completed, long total, double megabytesPerSecond, long etaNanos, boolean done);
+  }
 
-    public BitInputStream(ObjectInputStream ois) throws IOException {
-      this.ois = ois;
-      currentByte = 0;
-      numBitsRemaining = 0;
-    }
+  /**
+   * Tracks the progress of a long operation off its hot path.
+   * The operation only adds to a counter, and a daemon thread reads the counter every REPORT_INTERVAL_MILLIS
+   * and passes it on to a listener, so reporting costs the same however small the chunks are.
+   * Without a listener no thread is started and nothing is reported.
+   */
+  static class Progress implements AutoCloseable {
+    static final long REPORT_INTERVAL_MILLIS = 250; // Time between reports
+    private final AtomicLong completed = new AtomicLong(); // Bytes processed
+    private final long total; // Total number of bytes
+    private final ProgressListener listener; // Receives the reports, or null if reporting is off
+    private final ScheduledExecutorService reporter; // Runs the reports, or null if reporting is off
+    private final long startTime = System.nanoTime(); // When the operation started
 
     /**
-     * Reads a bit from the stream.
+     * Starts tracking an operation.
      *
-     * @return True if the bit is 1, otherwise false.
-     * @throws IOException if an I/O error occurs.
+     * @param total The total number of bytes.
+     * @param listener Receives the reports, or null to turn reporting off.
      */
-    public boolean read() throws IOException {
-      if (numBitsRemaining == 0) {
-        currentByte = ois.read();
-        if (currentByte == -1) {
-          throw new EOFException();
-        }
-        numBitsRemaining = 8;
+    Progress(long total, ProgressListener listener) {
+      this.total = total;
+      this.listener = listener;
+      if (listener == null) {
+        reporter = null;
+        return;
       }
-      numBitsRemaining--;
-      return ((currentByte >>> numBitsRemaining) & 1) == 1;
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, task -> {
+        Thread thread = new Thread(task, "progress");
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.scheduleAtFixedRate(() -> report(false), 0, REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+      reporter = executor;
+    }
+
+    /**
+     * Returns true if anyone is listening, so callers can skip work that is only needed for reporting.
+     *
+     * @return True if reporting is on.
+     */
+    boolean isEnabled() {
+      return listener != null;
     }
+
+    /**
+     * Records that more bytes have been processed.
+     *
+     * @param bytes The number of bytes.
+     */
+    void add(long bytes) {
+      completed.addAndGet(bytes);
+    }
+
+    /**
+     * Records the total number of bytes processed so far.
+     *
+     * @param bytes The number of bytes.
+     */
+    void set(long bytes) {
+      completed.set(bytes);
+    }
+
     /**
-     * Closes the stream.
+     * Passes the current state on to the listener.
+     *
+     * @param done True for the last report.
      */
+    private void report(boolean done) {
+      long processed = done ? total : Math.min(completed.get(), total);
+      long elapsed = Math.max(1, System.nanoTime() - startTime);
+      long eta = processed == 0 ? -1 : (long) ((double) elapsed * (total - processed) / processed);
+      listener.progress(processed, total, megabytesPerSecond(processed, elapsed), eta, done);
+    }
 
+    /**
+     * Stops the reporter thread and sends the last report.
+     */
     @Override
-    public void close() throws IOException {
-      ois.close();
+    public void close() {
+      if (reporter == null) return;
+      reporter.shutdownNow();
+      try {
+        reporter.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      report(true);
     }
   }
 
+  /**
+   * Returns a listener that draws a colored progress bar with the throughput and the time left on System.out.
+   *
+   * @return The listener.
+   */
+  static ProgressListener consoleProgress() {
+    return (completed, total, megabytesPerSecond, etaNanos, done) -> {
+      int barLength = 50; // Length of the progress bar
+      int filledLength = total == 0 ? barLength : (int) (barLength * completed / total);
 
+      StringBuilder bar = new StringBuilder("\r[");
+      for (int i = 0; i < barLength; i++) {
+        if (i < filledLength) {
+          bar.append("\u001B[42m \u001B[0m"); // Green background for completed portion
+        } else {
+          bar.append("\u001B[41m \u001B[0m"); // Red background for incomplete portion
+        }
+      }
+      bar.append("] ").append(total == 0 ? 100 : 100 * completed / total).append("%");
+      bar.append(String.format("  %.1f MB/s", megabytesPerSecond));
+      if (!done && etaNanos >= 0) {
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(etaNanos);
+        bar.append(String.format("  ETA %d:%02d   ", seconds / 60, seconds % 60));
+      } else {
+        bar.append("            ");
+      }
+      if (done) bar.append(System.lineSeparator());
+      System.out.print(bar);
+    };
+  }
 
+  
+  /**
+   * Calculates throughput in megabytes per second.
+   *
+   * @param bytes The number of bytes processed.
+   * @param nanos The time used, in nanoseconds.
+   * @return The throughput in MB/s.
+   */
+  static double megabytesPerSecond(long bytes, long nanos) {
+    return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+  }
 
   /**
-   * Utility method to print a progress bar with color.
+   * Compresses and decompresses each file at every level, one block at a time on this thread, and prints
+   * the compression ratio and the throughput of both directions. Each measurement is repeated until it has
+   * run for a while and the fastest run is reported, so the JIT has warmed up.
+   * The cost of the CRC32C checks is reported as a share of the decompression time at the default level,
+   * since decompression is where it matters most.
    *
-   * @param completed The number of bytes processed.
-   * @param total     The total number of bytes.
+   * @param files The files to compress.
+   * @throws IOException if a file cannot be read.
    */
-  public static void printProgressBar(long completed, long total) {
-    int barLength = 50; // Length of the progress bar
-    int filledLength = (int) (barLength * completed / total);
+  static void benchmarkLevels(String[] files) throws IOException {
+    for (String file : files) {
+      byte[] input = Files.readAllBytes(Paths.get(file));
+      System.out.printf("%s, %d bytes%n", file, input.length);
+      System.out.println("level  method  ratio     compress MB/s  decompress MB/s");
+      long defaultDecompress = 0;
+      for (int level = 0; level < LZ77.LEVELS.length; level++) {
+        long compressedSize = 0;
+        long bestCompress = Long.MAX_VALUE;
+        long bestDecompress = Long.MAX_VALUE;
+        long benchmarkStart = System.nanoTime();
+        for (int run = 0; run < 5 || System.nanoTime() - benchmarkStart < 500_000_000L; run++) {
+          byte[][] blocks = new byte[(input.length + BLOCK_SIZE - 1) / BLOCK_SIZE][];
+          long start = System.nanoTime();
+          for (int b = 0; b < blocks.length; b++) {
+            int offset = b * BLOCK_SIZE;
+            blocks[b] = compressBlock(input, offset, Math.min(BLOCK_SIZE, input.length - offset), level);
+          }
+          long middle = System.nanoTime();
+          long restored = 0;
+          for (byte[] block : blocks) restored += decompressBlock(block, 0, block.length).length;
+          long stop = System.nanoTime();
+          if (restored != input.length) throw new IllegalStateException("Round trip failed at level " + level);
+          compressedSize = 0;
+          for (byte[] block : blocks) compressedSize += block.length;
+          bestCompress = Math.min(bestCompress, middle - start);
+          bestDecompress = Math.min(bestDecompress, stop - middle);
+        }
+        if (level == DEFAULT_LEVEL) defaultDecompress = bestDecompress;
+        System.out.printf("%5d  %-6s  %6.2f%%  %13.2f  %15.2f%n", level, level == 0 ? "LZ78" : "LZ77",
+            100.0 * compressedSize / Math.max(1, input.length),
+            megabytesPerSecond(input.length, bestCompress), megabytesPerSecond(input.length, bestDecompress));
+      }
 
-    StringBuilder bar = new StringBuilder("\r[");
-    for (int i = 0; i < barLength; i++) {
-      if (i < filledLength) {
-        bar.append("\u001B[42m \u001B[0m"); // Green background for completed portion
-      } else {
-        bar.append("\u001B[41m \u001B[0m"); // Red background for incomplete portion
+      // Checksums are computed once per block and once for the stream, so verification reads the data twice
+      long bestChecksum = Long.MAX_VALUE;
+      int fileChecksum = 0; // Printed, so the checksums cannot be optimized away
+      long benchmarkStart = System.nanoTime();
+      for (int run = 0; run < 5 || System.nanoTime() - benchmarkStart < 200_000_000L; run++) {
+        long start = System.nanoTime();
+        for (int i = 0; i < 2; i++) {
+          CRC32C crc = new CRC32C();
+          crc.update(input, 0, input.length);
+          fileChecksum = (int) crc.getValue();
+        }
+        bestChecksum = Math.min(bestChecksum, System.nanoTime() - start);
       }
+      System.out.printf("CRC32C %08x: %.0f MB/s, adds %.2f%% to decompression at level %d%n",
+          fileChecksum, megabytesPerSecond(2L * input.length, bestChecksum), 100.0 * bestChecksum / defaultDecompress, DEFAULT_LEVEL);
+      System.out.println();
+    }
+  }
+
+  /**
+   * Runs the archive, list and extract actions of main.
+   *
+   * @param args The command line arguments, see main.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static void archiveAction(String[] args) throws IOException {
+    String action = args[0];
+    if (("archive".equals(action) || "a".equals(action)) && (args.length == 3 || args.length == 4)) {
+      long startTime = System.nanoTime();
+      List<Archive.Entry> entries =
+          Archive.create(args[1], args[2], args.length == 4 ? Integer.parseInt(args[3]) : DEFAULT_LEVEL);
+      long endTime = System.nanoTime();
+      long totalSize = 0;
+      for (Archive.Entry entry : entries) totalSize += entry.size;
+      long archiveSize = Files.size(Paths.get(args[2]));
+      System.out.println("Archived " + entries.size() + " files, " + totalSize + " bytes");
+      System.out.println("Archive size: " + archiveSize + " bytes");
+      System.out.printf("Compression ratio: %.2f%%%n", (double) archiveSize / Math.max(1, totalSize) * 100);
+      System.out.printf("Compression throughput: %.2f MB/s%n", megabytesPerSecond(totalSize, endTime - startTime));
+    } else if (("list".equals(action) || "l".equals(action)) && args.length == 2) {
+      for (Archive.Entry entry : Archive.list(args[1])) {
+        System.out.printf("%12d %12d  %s%n", entry.size, entry.compressedSize, entry.name);
+      }
+    } else if (("extract".equals(action) || "x".equals(action)) && args.length == 4) {
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[3]))) {
+        System.out.println("Extracted " + Archive.extract(args[1], args[2], out) + " bytes");
+      }
+    } else {
+      System.out.println("Wrong number of arguments for " + action);
     }
-    bar.append("] ").append(100 * completed / total).append("%");
-    System.out.print(bar);
   }
 
-  
   /**
    * The main method to test the compression and decompression.
    *
    * @param args The command line arguments.
-   * args[0] = "compress" or "decompress" or "c" or "d"
+   * args[0] = "compress" or "decompress" or "c" or "d", or "compress-range" or "cr" to use the range coder
    * args[1] = input file
    * args[2] = output file (will be overwritten)
+   * args[3] = compression level, 0 for LZ78 or 1 to 9 for LZ77 (optional, compress only)
+   * or, to work with archives of many files:
+   * args[0] = "archive" or "a", args[1] = directory, args[2] = archive file, args[3] = level (optional)
+   * args[0] = "list" or "l", args[1] = archive file
+   * args[0] = "extract" or "x", args[1] = archive file, args[2] = name of the file, args[3] = output file
+   * or, to compare the compression levels on some files:
+   * args[0] = "benchmark"
+   * args[1..] = the files, by default the three files in Oving_8
+   * or, to print part of a compressed file without decompressing the rest:
+   * args[0] = "read" or "r"
+   * args[1] = compressed file
+   * args[2] = offset in the original file
+   * args[3] = number of bytes
    */
   public static void main(String[] args) {
 
-    
-     if (args.length != 3) {
-      System.out.println("Usage: java Compress.java <action> <input file> <output file>");
+    if (args.length == 4 && ("read".equals(args[0]) || "r".equals(args[0]))) {
+      try (CompressedFile file = new CompressedFile(args[1])) {
+        System.out.write(file.read(Long.parseLong(args[2]), Integer.parseInt(args[3])));
+        System.out.flush();
+      } catch (IOException | IllegalArgumentException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+
+    if (args.length >= 2 && Arrays.asList("archive", "a", "list", "l", "extract", "x").contains(args[0])) {
+      try {
+        archiveAction(args);
+      } catch (IOException | IllegalArgumentException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+
+    if (args.length > 0 && "benchmark".equals(args[0])) {
+      String[] files = args.length > 1
+          ? Arrays.copyOfRange(args, 1, args.length)
+          : new String[] {"Oving_8/diverse.txt", "Oving_8/diverse.lyx", "Oving_8/opg8-kompr.lyx"};
+      try {
+        benchmarkLevels(files);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+
+     if (args.length != 3 && args.length != 4) {
+      System.out.println("Usage: java Compress.java <action> <input file> <output file> [level]");
+      System.out.println("   or: java Compress.java read <compressed file> <offset> <length>");
+      System.out.println("   or: java Compress.java archive <directory> <archive file> [level]");
+      System.out.println("   or: java Compress.java list <archive file>");
+      System.out.println("   or: java Compress.java extract <archive file> <name> <output file>");
+      System.out.println("   or: java Compress.java benchmark [files]");
       return;
     }
     
     String action = args[0];
     String inputFile = args[1];
     String outputFile = args[2];
+    // Draw a progress bar only when the output is a terminal, not when it is redirected to a file
+    ProgressListener progress = System.console() != null ? consoleProgress() : null;
 
     try {
-      if ("compress".equals(action) || "c".equals(action)) {
+      boolean rangeCoded = "compress-range".equals(action) || "cr".equals(action);
+      if ("compress".equals(action) || "c".equals(action) || rangeCoded) {
 
         long inputFileSize = Files.size(Paths.get(inputFile));
         System.out.println("Original file size: " + inputFileSize + " bytes");
-        compress(inputFile, outputFile);
+        long startTime = System.nanoTime();
+        compress(inputFile, outputFile, args.length == 4 ? Integer.parseInt(args[3]) : DEFAULT_LEVEL, rangeCoded,
+            progress);
+        long endTime = System.nanoTime();
         long outputFileSize = Files.size(Paths.get(outputFile));
         System.out.println("Compressed file size: " + outputFileSize + " bytes");
-        System.out.printf("Compression ratio: %.2f%%", (double) outputFileSize / inputFileSize * 100);
+        System.out.printf("Compression ratio: %.2f%%%n", (double) outputFileSize / inputFileSize * 100);
+        System.out.printf("Compression throughput: %.2f MB/s", megabytesPerSecond(inputFileSize, endTime - startTime));
       } else if ("decompress".equals(action) || "d".equals(action)) {
-        decompress(inputFile, outputFile);
+        long startTime = System.nanoTime();
+        decompress(inputFile, outputFile, progress);
+        long endTime = System.nanoTime();
+        long outputFileSize = Files.size(Paths.get(outputFile));
+        System.out.println("Decompression complete");
+        System.out.println("Run command: 'diff + filname + filname' to check for differences");
+        System.out.println("If there is no output, the files are identical");
+        System.out.printf("Decompression throughput: %.2f MB/s", megabytesPerSecond(outputFileSize, endTime - startTime));
       } else {
         System.out.println("Unknown action");
       }
 
 
-    } catch (IOException | ClassNotFoundException | IllegalArgumentException e) {
+    } catch (IOException | IllegalArgumentException e) {
       e.printStackTrace();
     }
   }
   /**
-   * The LZ78 class provides methods for compressing and decompressing text using LZ78.
-   * The compress method returns a list of LZ78 tokens, and the decompress method
-   * takes a list of LZ78 tokens and returns the original text.
+   * The LZ77 class provides methods for compressing and decompressing bytes using LZ77 with a 64 KB window.
+   * The compressed bytes are a 4 byte header holding the original length followed by sequences. A sequence is
+   * a token byte holding the number of literals in its high 4 bits and the match length minus MIN_MATCH in its
+   * low 4 bits, the literals, and a 2 byte distance back to the match. A 4 bit count of 15 is continued by
+   * bytes that are added to it, up to and including the first byte below 255. The last sequence may end
+   * after its literals. Distances and lengths are byte aligned so the Huffman stage can still compress them.
+   * Matches are found with hash chains over the last WINDOW_SIZE positions, and the compression level sets
+   * how long chains are searched and whether matching is lazy.
+   */
+public static class LZ77 {
+    static final int WINDOW_SIZE = 1 << 16; // Matches are less than this many bytes back
+    static final int MIN_MATCH = 4; // Shortest match, also the number of bytes hashed
+    static final int MAX_MATCH = 1 << 16; // Longest match
+    static final int HASH_BITS = 15; // log2 of the largest number of hash chains
+
+    /**
+     * The settings of each level: the number of chain entries tried, the match length that stops the search,
+     * and 1 if a match is only taken when the next position does not have a longer one (lazy matching).
+     * Level 0 is not LZ77 but selects the LZ78 stage.
+     */
+    static final int[][] LEVELS = {
+        {0, 0, 0},
+        {4, 8, 0},
+        {8, 16, 0},
+        {16, 32, 0},
+        {16, 32, 1},
+        {32, 64, 1},
+        {128, 128, 1},
+        {256, 256, 1},
+        {1024, 1024, 1},
+        {4096, MAX_MATCH, 1},
+    };
+
+    /**
+     * Compresses a range of bytes using LZ77.
+     *
+     * @param input The bytes to compress.
+     * @param offset The index of the first byte to compress.
+     * @param length The number of bytes to compress.
+     * @param level The compression level, 1 (fastest) to 9 (smallest).
+     * @return The compressed bytes.
+     */
+    public static byte[] compress(byte[] input, int offset, int length, int level) {
+        int maxChain = LEVELS[level][0];
+        int niceLength = LEVELS[level][1];
+        boolean lazy = LEVELS[level][2] != 0;
+        // Small inputs get smaller tables, which matters when many small files are compressed
+        int tableBits = Math.max(8, Math.min(16, 32 - Integer.numberOfLeadingZeros(length - 1)));
+        int[] head = new int[1 << Math.min(HASH_BITS, tableBits)]; // Last position with each hash, or -1
+        int[] prev = new int[1 << tableBits]; // Previous position with the same hash, by position % prev.length
+        Arrays.fill(head, -1);
+
+        // Every sequence takes up at most as many bytes as it covers, apart from the continuation bytes of
+        // its literal count, so this never overflows
+        byte[] output = new byte[length + length / 255 + 64];
+        int end = offset + length;
+        int last = end - MIN_MATCH; // Last position that can start a match
+        int q = writeInt(output, 0, length);
+        int literalStart = offset; // First byte not yet written
+        int inserted = offset; // First position not yet in the hash chains
+        int i = offset;
+
+        while (i <= last) {
+            long match = findMatch(input, i, end, head, prev, maxChain, niceLength);
+            inserted = i + 1;
+            int matchLength = (int) (match >>> 32);
+            if (matchLength < MIN_MATCH) {
+                i++;
+                continue;
+            }
+            // Lazy matching: emit the byte as a literal if the match starting after it is longer
+            while (lazy && matchLength < niceLength && i + 1 <= last) {
+                long next = findMatch(input, i + 1, end, head, prev, maxChain, niceLength);
+                inserted = i + 2;
+                if ((int) (next >>> 32) <= matchLength) break;
+                match = next;
+                matchLength = (int) (next >>> 32);
+                i++;
+            }
+            q = writeSequence(output, q, input, literalStart, i - literalStart, matchLength, (int) match);
+            i += matchLength;
+            literalStart = i;
+            for (int stop = Math.min(i, last + 1); inserted < stop; inserted++) {
+                insert(input, inserted, head, prev);
+            }
+        }
+        if (literalStart < end) {
+            q = writeSequence(output, q, input, literalStart, end - literalStart, 0, 0);
+        }
+        return Arrays.copyOf(output, q);
+    }
+
+    /**
+     * Adds a position to the hash chains and finds the longest earlier match for the bytes starting there.
+     *
+     * @param input The bytes being compressed.
+     * @param i The position, at least MIN_MATCH bytes before end.
+     * @param end The index after the last byte that may be matched.
+     * @param head The last position with each hash, a power of two long.
+     * @param prev The previous position with the same hash, by position % prev.length, a power of two at least
+     *             as long as the input or WINDOW_SIZE.
+     * @param maxChain The number of chain entries to try.
+     * @param niceLength The match length that stops the search.
+     * @return The match length in the high 32 bits and its distance in the low 32 bits, or 0 if there is none.
+     */
+    private static long findMatch(byte[] input, int i, int end, int[] head, int[] prev, int maxChain,
+                                  int niceLength) {
+        int h = hash(input, i, head.length);
+        int candidate = head[h];
+        prev[i & (prev.length - 1)] = candidate;
+        head[h] = i;
+
+        int maxLength = Math.min(MAX_MATCH, end - i);
+        int bestLength = 0;
+        int bestDistance = 0;
+        for (int chain = maxChain; candidate >= 0 && i - candidate < WINDOW_SIZE && chain > 0; chain--) {
+            // A candidate can only be longer if it matches at the last byte of the best match so far
+            if (input[candidate + bestLength] == input[i + bestLength]) {
+                int n = 0;
+                while (n < maxLength && input[candidate + n] == input[i + n]) n++;
+                if (n > bestLength) {
+                    bestLength = n;
+                    bestDistance = i - candidate;
+                    if (n >= niceLength || n == maxLength) break;
+                }
+            }
+            candidate = prev[candidate & (prev.length - 1)];
+        }
+        return ((long) bestLength << 32) | bestDistance;
+    }
+
+    /**
+     * Adds a position to the hash chains.
+     *
+     * @param input The bytes being compressed.
+     * @param i The position, at least MIN_MATCH bytes before the end.
+     * @param head The last position with each hash, a power of two long.
+     * @param prev The previous position with the same hash, by position % prev.length, a power of two at least
+     *             as long as the input or WINDOW_SIZE.
+     */
+    private static void insert(byte[] input, int i, int[] head, int[] prev) {
+        int h = hash(input, i, head.length);
+        prev[i & (prev.length - 1)] = head[h];
+        head[h] = i;
+    }
+
+    /**
+     * Hashes the MIN_MATCH bytes starting at a position.
+     *
+     * @param input The bytes being compressed.
+     * @param i The position.
+     * @param size The number of hash values, a power of two of at least 2.
+     * @return The hash, below size.
+     */
+    private static int hash(byte[] input, int i, int size) {
+        int v = (input[i] & 0xFF) | (input[i + 1] & 0xFF) << 8 | (input[i + 2] & 0xFF) << 16 | input[i + 3] << 24;
+        return (v * 0x9E3779B1) >>> Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * Writes a sequence of literals followed by a match.
+     *
+     * @param output The compressed bytes.
+     * @param q The index in output to write at.
+     * @param input The bytes being compressed.
+     * @param literalStart The index of the first literal.
+     * @param literals The number of literals.
+     * @param matchLength The length of the match, or 0 if the sequence ends after its literals.
+     * @param distance The distance back to the match.
+     * @return The index in output after the sequence.
+     */
+    private static int writeSequence(byte[] output, int q, byte[] input, int literalStart, int literals,
+                                     int matchLength, int distance) {
+        int extra = Math.max(0, matchLength - MIN_MATCH);
+        output[q++] = (byte) (Math.min(literals, 15) << 4 | Math.min(extra, 15));
+        if (literals >= 15) q = writeCount(output, q, literals - 15);
+        System.arraycopy(input, literalStart, output, q, literals);
+        q += literals;
+        if (matchLength == 0) return q;
+        output[q++] = (byte) (distance >>> 8);
+        output[q++] = (byte) distance;
+        if (extra >= 15) q = writeCount(output, q, extra - 15);
+        return q;
+    }
+
+    /**
+     * Writes the continuation bytes of a count: 255 while at least 255 remains, then the rest.
+     *
+     * @param output The compressed bytes.
+     * @param q The index in output to write at.
+     * @param count The part of the count that did not fit in the token.
+     * @return The index in output after the count.
+     */
+    private static int writeCount(byte[] output, int q, int count) {
+        for (; count >= 255; count -= 255) output[q++] = (byte) 255;
+        output[q++] = (byte) count;
+        return q;
+    }
+
+    /**
+     * Writes an int, most significant byte first.
+     *
+     * @param output The bytes to write to.
+     * @param q The index to write at.
+     * @param value The value.
+     * @return The index after the int.
+     */
+    private static int writeInt(byte[] output, int q, int value) {
+        output[q] = (byte) (value >>> 24);
+        output[q + 1] = (byte) (value >>> 16);
+        output[q + 2] = (byte) (value >>> 8);
+        output[q + 3] = (byte) value;
+        return q + 4;
+    }
+
+    /**
+     * Decompresses bytes written by compress.
+     *
+     * @param data The compressed bytes.
+     * @return The decompressed bytes.
+     * @throws IllegalArgumentException if the data is truncated or refers outside the output.
+     */
+    public static byte[] decompress(byte[] data) {
+        return decompress(data, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Decompresses bytes written by compress, rejecting a header that claims more than maxLength bytes.
+     *
+     * @param data The compressed bytes.
+     * @param maxLength The largest number of decompressed bytes to accept.
+     * @return The decompressed bytes.
+     * @throws IllegalArgumentException if the data is truncated, too long or refers outside the output.
+     */
+    public static byte[] decompress(byte[] data, int maxLength) {
+        if (data.length < 4) throw new IllegalArgumentException("Truncated LZ77 data");
+        int outputLength = (data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16 | (data[2] & 0xFF) << 8 | (data[3] & 0xFF);
+        if (outputLength < 0 || outputLength > maxLength) throw new IllegalArgumentException("Invalid LZ77 length " + outputLength);
+        byte[] output = new byte[outputLength];
+        int p = 4;
+        int position = 0;
+
+        while (position < outputLength) {
+            if (p == data.length) throw new IllegalArgumentException("Truncated LZ77 data");
+            int token = data[p++] & 0xFF;
+
+            // Literals
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (p == data.length) throw new IllegalArgumentException("Truncated LZ77 data");
+                    b = data[p++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > outputLength - position || literals > data.length - p) {
+                throw new IllegalArgumentException("Invalid LZ77 literal count " + literals);
+            }
+            System.arraycopy(data, p, output, position, literals);
+            p += literals;
+            position += literals;
+            if (position == outputLength) break;
+
+            // Match
+            if (data.length - p < 2) throw new IllegalArgumentException("Truncated LZ77 data");
+            int distance = (data[p] & 0xFF) << 8 | (data[p + 1] & 0xFF);
+            p += 2;
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (p == data.length) throw new IllegalArgumentException("Truncated LZ77 data");
+                    b = data[p++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (distance == 0 || distance > position || matchLength > outputLength - position) {
+                throw new IllegalArgumentException("Invalid LZ77 match at " + position);
+            }
+            int from = position - distance;
+            if (distance >= matchLength) {
+                System.arraycopy(output, from, output, position, matchLength);
+                position += matchLength;
+            } else {
+                // The match overlaps the bytes it produces, so it is copied one byte at a time
+                for (int n = 0; n < matchLength; n++) output[position++] = output[from + n];
+            }
+        }
+        return output;
+    }
+  }
+
+  /**
+   * The LZ78 class provides methods for compressing and decompressing bytes using LZ78.
+   * The compress method returns the serialized tokens, and the decompress method
+   * takes the serialized tokens and returns the original bytes.
+   * Each token is the index of a phrase in the dictionary followed by the next byte.
+   * After a 4 byte header holding the original length, the tokens are bit-packed: the index of the t-th token
+   * can only refer to the t - 1 phrases before it, so it is written with just enough bits for t - 1,
+   * followed by the 8 bits of the byte.
+   * The dictionary holds at most MAX_PHRASES - 1 phrases. When it is full it is cleared and phrase numbering
+   * starts over, which bounds the memory used and the index width.
    */
 
 public class LZ78 {
-    static class Token {
-        final int index;
-        final char nextChar;
+    static final int MAX_PHRASES = 1 << 16; // Phrase indices are always below this
+
+    /**
+     * The LZ78 dictionary stored as a trie. Each phrase is a child of its longest proper prefix, and the edges
+     * (parent index, next byte) -> child index are kept in an open-addressed hash table of primitives,
+     * so looking up or adding a phrase costs one probe sequence and no allocation.
+     */
+    static class Trie {
+        private static final long EMPTY = -1L; // Marks an unused slot
+        private long[] keys; // (parent index << 8) | byte
+        private int[] children; // Child index for each key
+        private int size; // Number of phrases in the table
+        private int mask; // Capacity - 1, the capacity is a power of two
 
         /**
-         * Constructs a new LZ78 token.
-         * 
-         * @param index The index of the token.
-         * @param nextChar The next character of the token.
+         * Constructs an empty dictionary.
          */
+        Trie() {
+            resize(1 << 12);
+        }
 
-        Token(int index, char nextChar) {
-            this.index = index;
-            this.nextChar = nextChar;
+        /**
+         * Removes all phrases, keeping the allocated table.
+         */
+        void clear() {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
         }
 
         /**
-         * Returns a string representation of the token.
+         * Finds the phrase made by extending a phrase with one byte.
+         *
+         * @param parent The index of the phrase to extend.
+         * @param b The byte to extend it with, as an unsigned value.
+         * @return The index of the extended phrase, or -1 if it is not in the dictionary.
          */
+        int child(int parent, int b) {
+            long key = ((long) parent << 8) | b;
+            for (int i = slot(key); keys[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] == key) return children[i];
+            }
+            return -1;
+        }
 
-        @Override
-        public String toString() {
-            return "(" + index + ", '" + nextChar + "')";
+        /**
+         * Adds the phrase made by extending a phrase with one byte.
+         *
+         * @param parent The index of the phrase to extend.
+         * @param b The byte to extend it with, as an unsigned value.
+         * @param child The index of the new phrase.
+         */
+        void add(int parent, int b, int child) {
+            if (2 * (size + 1) > keys.length) resize(2 * keys.length);
+            long key = ((long) parent << 8) | b;
+            int i = slot(key);
+            while (keys[i] != EMPTY) i = (i + 1) & mask;
+            keys[i] = key;
+            children[i] = child;
+            size++;
         }
-    }
 
-    /**
-     * Serializes a list of LZ78 tokens to a byte array.
-     * 
-     * @param tokens The list of tokens to serialize.
-     * @return The serialized byte array.
-     */
-    public static byte[] serializeLZ78Tokens(List<LZ78.Token> tokens) {
-    ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-    DataOutputStream dataStream = new DataOutputStream(byteStream);
+        /**
+         * Finds the home slot of a key.
+         *
+         * @param key The key to hash.
+         * @return The first slot to probe.
+         */
+        private int slot(long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
 
-    try {
-        for (LZ78.Token token : tokens) {
-            dataStream.writeInt(token.index);
-            dataStream.writeChar(token.nextChar);
+        /**
+         * Rehashes the table into a new capacity.
+         *
+         * @param capacity The new capacity, a power of two.
+         */
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldChildren = children;
+            keys = new long[capacity];
+            children = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+            mask = capacity - 1;
+            if (oldKeys == null) return;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY) continue;
+                int j = slot(oldKeys[i]);
+                while (keys[j] != EMPTY) j = (j + 1) & mask;
+                keys[j] = oldKeys[i];
+                children[j] = oldChildren[i];
+            }
         }
-    } catch (IOException e) {
-        throw new RuntimeException("Error during LZ78 token serialization", e);
     }
 
-    return byteStream.toByteArray();
-}
-/**
- * Deserializes a list of LZ78 tokens from a byte array.
- * 
- * @param data The byte array to deserialize.
- * @return The list of tokens.
- */
-public static List<LZ78.Token> deserializeLZ78Tokens(byte[] data) {
-  ByteArrayInputStream byteStream = new ByteArrayInputStream(data);
-  DataInputStream dataStream = new DataInputStream(byteStream);
-  List<LZ78.Token> tokens = new ArrayList<>();
+    /**
+     * Compresses a range of bytes using LZ78.
+     *
+     * @param input The bytes to compress.
+     * @param offset The index of the first byte to compress.
+     * @param length The number of bytes to compress.
+     * @return The serialized LZ78 tokens.
+     */
+    public static byte[] compress(byte[] input, int offset, int length) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, length / 2));
+        BitWriter out = new BitWriter(bytes);
+        Trie dict = new Trie();
+        int current = 0; // Index of the current phrase, 0 is the empty phrase
+        int parent = 0; // Index of the phrase the current phrase extends
+        int last = 0; // The byte the current phrase ends with
+        int next = 1; // Index given to the next phrase added to the dictionary
 
-  try {
-      while (dataStream.available() > 0) {
-          int index = dataStream.readInt();
-          char nextChar = dataStream.readChar();
-          tokens.add(new LZ78.Token(index, nextChar));
-      }
-  } catch (IOException e) {
-      throw new RuntimeException("Error during LZ78 token deserialization", e);
-  }
+        try {
+            out.write(length, 32);
+            for (int i = offset; i < offset + length; i++) {
+                int b = input[i] & 0xFF;
+                int child = dict.child(current, b);
 
-  return tokens;
-}
+                // If child == -1, the extended phrase is not in the dictionary
+                if (child == -1) {
+                    out.write(current, indexBits(next));
+                    out.write(b, 8);
+                    dict.add(current, b, next++);
+                    current = 0;
+                    if (next == MAX_PHRASES) {
+                        dict.clear();
+                        next = 1;
+                    }
+                } else {
+                    parent = current;
+                    last = b;
+                    current = child;
+                }
+            }
+            // The last phrase is already in the dictionary, so it is written as its prefix and its last byte
+            if (current != 0) {
+                out.write(parent, indexBits(next));
+                out.write(last, 8);
+            }
+            out.finish();
+        } catch (IOException e) {
+            throw new RuntimeException("Error during LZ78 token serialization", e);
+        }
+        return bytes.toByteArray();
+    }
 
+    /**
+     * Decompresses serialized LZ78 tokens.
+     * Every phrase is a copy of an earlier phrase plus one byte, and all phrases are written to the output
+     * in order, so the dictionary only stores where each phrase starts in the output and how long it is.
+     *
+     * @param data The serialized tokens.
+     * @return The decompressed bytes.
+     * @throws IllegalArgumentException if the data is truncated or refers to a phrase that does not exist yet.
+     */
+    public static byte[] decompress(byte[] data) {
+        return decompress(data, Integer.MAX_VALUE);
+    }
 
+    /**
+     * Decompresses serialized LZ78 tokens, rejecting a header that claims more than maxLength bytes.
+     *
+     * @param data The serialized tokens.
+     * @param maxLength The largest number of decompressed bytes to accept.
+     * @return The decompressed bytes.
+     * @throws IllegalArgumentException if the data is truncated, too long or refers to a phrase that does not
+     *                                  exist yet.
+     */
+    public static byte[] decompress(byte[] data, int maxLength) {
+        TokenReader in = new TokenReader(data);
+        int outputLength = in.read(32);
+        if (outputLength < 0 || outputLength > maxLength) {
+            throw new IllegalArgumentException("Invalid LZ78 length " + outputLength);
+        }
+        byte[] output = new byte[outputLength];
+        // Every token but the last adds at least one byte, so there are at most as many phrases as output bytes
+        int phrases = Math.min(output.length + 1, MAX_PHRASES);
+        int[] start = new int[phrases]; // Start of each phrase in the output, index 0 is the empty phrase
+        int[] length = new int[phrases]; // Length of each phrase
+        int position = 0;
 
+        for (int t = 1; position < output.length; t = t + 1 == MAX_PHRASES ? 1 : t + 1) {
+            int index = in.read(indexBits(t));
+            byte b = (byte) in.read(8);
+            if (index >= t) {
+                throw new IllegalArgumentException("Invalid LZ78 token index " + index);
+            }
+            int phraseLength = Math.min(length[index], output.length - position);
+            System.arraycopy(output, start[index], output, position, phraseLength);
+            start[t] = position;
+            length[t] = phraseLength + 1;
+            position += phraseLength;
+            if (position < output.length) output[position++] = b;
+        }
+        return output;
+    }
 
     /**
-     * Compresses a string using LZ78.
-     * 
-     * @param input The string to compress.
-     * @return A list of LZ78 tokens.
+     * Returns the number of bits used for the index of a token.
+     *
+     * @param t The number of the token, counting from 1, which is also the number of phrases it can refer to.
+     * @return The number of bits needed to write the indices 0 until t - 1.
      */
+    static int indexBits(int t) {
+        return 32 - Integer.numberOfLeadingZeros(t - 1);
+    }
 
-     public static List<Token> compress(String input) {
-      List<Token> tokens = new ArrayList<>();
-      List<String> dict = new ArrayList<>();
-      String current = "";
-  
-      for (char c : input.toCharArray()) {
-          String extended = current + c;
-          int index = dict.indexOf(extended);
-  
-          // If index == -1, the substring is not in the dictionary
-          if (index == -1) {
-              int currentIndex = dict.indexOf(current);
-              tokens.add(new Token(currentIndex == -1 ? 0 : currentIndex + 1, c));
-              dict.add(extended);
-              current = "";
-          } else {
-              current = extended;
-          }
-      }
-      // Handling the last substring (if any)
-      if (!current.isEmpty()) {
-          int currentIndex = dict.indexOf(current);
-          tokens.add(new Token(currentIndex == -1 ? 0 : currentIndex + 1, '\0'));
-      }
-      return tokens;
-  }
     /**
-     * Decompresses a list of LZ78 tokens.
-     * 
-     * @param tokens The list of tokens to decompress.
-     * @return The decompressed string.
+     * Reads values of varying bit width from a byte array written by a BitWriter.
      */
-    public static String decompress(List<Token> tokens) {
-        List<String> dict = new ArrayList<>();
-        dict.add("");  // Placeholder for index 0
+    static class TokenReader {
+        private final byte[] data; // The packed bytes
+        private int position; // Index of the next byte to load
+        private long bits; // Loaded bits not yet read, in the low end
+        private int bitCount; // Number of bits in bits
+
+        TokenReader(byte[] data) {
+            this.data = data;
+        }
 
-        StringBuilder output = new StringBuilder();
-        for (Token token : tokens) {
-            String previous = dict.get(token.index);
-            String current = previous + token.nextChar;
-            dict.add(current);
-            output.append(current);
+        /**
+         * Reads a value.
+         *
+         * @param width The number of bits to read, at most 32.
+         * @return The value.
+         * @throws IllegalArgumentException if the data ends before the value.
+         */
+        int read(int width) {
+            while (bitCount < width) {
+                if (position == data.length) throw new IllegalArgumentException("Truncated LZ78 data");
+                bits = (bits << 8) | (data[position++] & 0xFF);
+                bitCount += 8;
+            }
+            bitCount -= width;
+            return (int) ((bits >>> bitCount) & ((1L << width) - 1));
         }
-        return output.toString();
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,267 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmarks each stage of the Compress pipeline on its own, so a regression in one stage is not hidden by
+ * the others. Every stage runs on one block of data: the bundled files and synthetic random and repetitive data.
+ * Each stage is warmed up until the JIT has compiled it, then run repeatedly for a fixed time, and the
+ * throughput in MB/s of its input and the bytes it allocates per run are printed.
+ * The two entropy coders are also compared on size and on how long it takes before they can output anything:
+ * static Huffman coding has to count the whole block and build its codes first, the range coder does not.
+ *
+ * Compile and run from the repository root with
+ * javac -d out Oving_8/Compress.java Oving_8/CompressBenchmark.java
+ * java -cp out CompressBenchmark [files]
+ */
+public class CompressBenchmark {
+
+  private static final long WARMUP_NANOS = 300_000_000L; // Time each stage runs before it is measured
+  private static final long MEASURE_NANOS = 1_000_000_000L; // Time each stage is measured for
+  private static final int SYNTHETIC_SIZE = Compress.BLOCK_SIZE; // Size of the synthetic data sets
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private static long sink; // Results of the stages, so the JIT cannot remove the work
+
+  /**
+   * One stage of the pipeline, prepared with its input.
+   */
+  private interface Stage {
+    /**
+     * Runs the stage once.
+     *
+     * @return A value depending on the result, to be added to the sink.
+     * @throws IOException if the stage fails.
+     */
+    long run() throws IOException;
+  }
+
+  /**
+   * Generates bytes drawn uniformly at random, which no stage can compress.
+   *
+   * @param size The number of bytes.
+   * @return The bytes.
+   */
+  private static byte[] randomData(int size) {
+    byte[] data = new byte[size];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+  /**
+   * Generates log-like lines where only a counter and a few random words change between lines.
+   *
+   * @param size The number of bytes.
+   * @return The bytes.
+   */
+  private static byte[] repetitiveData(int size) {
+    String[] words = {"INFO", "WARN", "connection", "request", "served", "from", "cache", "timeout", "user"};
+    Random random = new Random(42);
+    StringBuilder text = new StringBuilder(size + 100);
+    for (int line = 0; text.length() < size; line++) {
+      text.append("2024-01-01 12:00:").append(line % 60).append(' ').append(words[random.nextInt(2)]);
+      for (int i = 0; i < 6; i++) text.append(' ').append(words[random.nextInt(words.length)]);
+      text.append(" id=").append(line).append('\n');
+    }
+    return Arrays.copyOf(text.toString().getBytes(), size);
+  }
+
+  /**
+   * Splits serialized LZ78 tokens into their indices and bytes, the same way LZ78.decompress reads them.
+   *
+   * @param data The serialized tokens.
+   * @return The indices in the first array and the bytes in the second, one token per element.
+   */
+  private static int[][] lz78Tokens(byte[] data) {
+    Compress.LZ78.TokenReader in = new Compress.LZ78.TokenReader(data);
+    int outputLength = in.read(32);
+    int[] indices = new int[Math.max(16, outputLength)];
+    int[] bytes = new int[indices.length];
+    int[] length = new int[Compress.LZ78.MAX_PHRASES];
+    int count = 0;
+    for (int t = 1, position = 0; position < outputLength; t = t + 1 == Compress.LZ78.MAX_PHRASES ? 1 : t + 1) {
+      indices[count] = in.read(Compress.LZ78.indexBits(t));
+      bytes[count] = in.read(8);
+      int phraseLength = Math.min(length[indices[count]], outputLength - position);
+      length[t] = phraseLength + 1;
+      position += Math.min(phraseLength + 1, outputLength - position);
+      count++;
+    }
+    return new int[][] {Arrays.copyOf(indices, count), Arrays.copyOf(bytes, count)};
+  }
+
+  /**
+   * Warms a stage up, measures it and prints one line of results.
+   *
+   * @param name The name of the stage.
+   * @param inputBytes The number of bytes the stage processes per run, used for the throughput.
+   * @param stage The stage.
+   * @throws IOException if the stage fails.
+   */
+  private static void measure(String name, long inputBytes, Stage stage) throws IOException {
+    long warmupStart = System.nanoTime();
+    while (System.nanoTime() - warmupStart < WARMUP_NANOS) sink += stage.run();
+
+    long thread = Thread.currentThread().getId();
+    long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+    long start = System.nanoTime();
+    long runs = 0;
+    long elapsed;
+    do {
+      sink += stage.run();
+      runs++;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < MEASURE_NANOS);
+    long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+    System.out.printf("  %-22s %10.2f MB/s %14d bytes/op %8.2f bytes/input byte%n", name,
+        Compress.megabytesPerSecond(inputBytes * runs, elapsed), allocated / runs,
+        (double) allocated / runs / Math.max(1, inputBytes));
+  }
+
+  /**
+   * Warms a stage up and returns its average run time.
+   *
+   * @param stage The stage.
+   * @return The average time of a run in nanoseconds.
+   * @throws IOException if the stage fails.
+   */
+  private static double averageNanos(Stage stage) throws IOException {
+    long warmupStart = System.nanoTime();
+    while (System.nanoTime() - warmupStart < WARMUP_NANOS) sink += stage.run();
+    long start = System.nanoTime();
+    long runs = 0;
+    long elapsed;
+    do {
+      sink += stage.run();
+      runs++;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < MEASURE_NANOS / 4);
+    return (double) elapsed / runs;
+  }
+
+  /**
+   * Benchmarks every stage on one data set.
+   *
+   * @param name The name of the data set.
+   * @param data The data, at most one block.
+   * @throws IOException if a stage fails.
+   */
+  private static void benchmark(String name, byte[] data) throws IOException {
+    System.out.printf("%s, %d bytes%n", name, data.length);
+
+    // Inputs of the later stages
+    byte[] lz78 = Compress.LZ78.compress(data, 0, data.length);
+    int[][] tokens = lz78Tokens(lz78);
+    byte[] lz77 = Compress.LZ77.compress(data, 0, data.length, Compress.DEFAULT_LEVEL);
+    int[] freq = new int[256];
+    for (byte b : lz77) freq[b & 0xFF]++;
+    int[] lengths = Compress.codeLengths(freq);
+    int[] codes = Compress.canonicalCodes(lengths);
+    ByteArrayOutputStream encodedBytes = new ByteArrayOutputStream();
+    Compress.BitWriter writer = new Compress.BitWriter(encodedBytes);
+    for (byte b : lz77) writer.write(codes[b & 0xFF], lengths[b & 0xFF]);
+    writer.close();
+    byte[] encoded = encodedBytes.toByteArray();
+    byte[] block = Compress.compressBlock(data, 0, data.length, Compress.DEFAULT_LEVEL);
+    ByteArrayOutputStream rangeBytes = new ByteArrayOutputStream();
+    Compress.RangeEncoder rangeEncoder = new Compress.RangeEncoder(rangeBytes);
+    for (byte b : lz77) rangeEncoder.encode(b & 0xFF);
+    rangeEncoder.finish();
+    byte[] rangeCoded = rangeBytes.toByteArray();
+
+    measure("LZ78 compress", data.length, () -> Compress.LZ78.compress(data, 0, data.length).length);
+    measure("LZ78 serialize tokens", lz78.length, () -> {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(lz78.length);
+      Compress.BitWriter out = new Compress.BitWriter(bytes);
+      out.write(data.length, 32);
+      for (int i = 0, t = 1; i < tokens[0].length; i++, t = t + 1 == Compress.LZ78.MAX_PHRASES ? 1 : t + 1) {
+        out.write(tokens[0][i], Compress.LZ78.indexBits(t));
+        out.write(tokens[1][i], 8);
+      }
+      out.finish();
+      return bytes.size();
+    });
+    measure("LZ78 decompress", data.length, () -> Compress.LZ78.decompress(lz78).length);
+    measure("LZ77 compress", data.length,
+        () -> Compress.LZ77.compress(data, 0, data.length, Compress.DEFAULT_LEVEL).length);
+    measure("LZ77 decompress", data.length, () -> Compress.LZ77.decompress(lz77).length);
+    measure("Huffman count + build", lz77.length, () -> {
+      int[] counts = new int[256];
+      for (byte b : lz77) counts[b & 0xFF]++;
+      return Compress.canonicalCodes(Compress.codeLengths(counts))[0];
+    });
+    measure("Huffman encode", lz77.length, () -> {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoded.length);
+      Compress.BitWriter out = new Compress.BitWriter(bytes);
+      for (byte b : lz77) out.write(codes[b & 0xFF], lengths[b & 0xFF]);
+      out.finish();
+      return bytes.size();
+    });
+    measure("Huffman decode", lz77.length, () -> {
+      byte[] out = new byte[lz77.length];
+      new Compress.HuffmanDecoder(lengths, encoded, 0, encoded.length).decode(out, 0, out.length);
+      return out[out.length - 1];
+    });
+    measure("Range encode", lz77.length, () -> {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(rangeCoded.length);
+      Compress.RangeEncoder out = new Compress.RangeEncoder(bytes);
+      for (byte b : lz77) out.encode(b & 0xFF);
+      out.finish();
+      return bytes.size();
+    });
+    measure("Range decode", lz77.length, () -> {
+      byte[] out = new byte[lz77.length];
+      new Compress.RangeDecoder(rangeCoded, 0, rangeCoded.length).decode(out, 0, out.length);
+      return out[out.length - 1];
+    });
+    measure("Block compress", data.length,
+        () -> Compress.compressBlock(data, 0, data.length, Compress.DEFAULT_LEVEL).length);
+    measure("Block decompress", data.length, () -> Compress.decompressBlock(block, 0, block.length).length);
+
+    // Huffman can write its first byte, the header, once it has counted every symbol and built the codes
+    double huffmanLatency = averageNanos(() -> {
+      int[] counts = new int[256];
+      for (byte b : lz77) counts[b & 0xFF]++;
+      return Compress.canonicalCodes(Compress.codeLengths(counts))[0];
+    });
+    double rangeLatency = averageNanos(() -> {
+      Compress.RangeEncoder out = new Compress.RangeEncoder(new ByteArrayOutputStream());
+      int i = 0;
+      while (out.size() == 0 && i < lz77.length) out.encode(lz77[i++] & 0xFF);
+      return i;
+    });
+    // The Huffman header is the symbol count, a bitmap of the symbols used and one length byte per symbol used
+    long huffmanHeader = 4 + 32 + Arrays.stream(lengths).filter(l -> l > 0).count();
+    System.out.printf("  LZ77 output %d bytes: Huffman %d bytes with header, range coder %d bytes with count%n",
+        lz77.length, huffmanHeader + encoded.length, 4 + rangeCoded.length);
+    System.out.printf("  First output byte after: Huffman %.1f us, range coder %.1f us%n",
+        huffmanLatency / 1000, rangeLatency / 1000);
+    System.out.println();
+  }
+
+  /**
+   * Main method to run the benchmarks.
+   *
+   * @param args The files to benchmark, by default the three files in Oving_8. Only the first block is used.
+   * @throws IOException if a file cannot be read or a stage fails.
+   */
+  public static void main(String[] args) throws IOException {
+    String[] files = args.length > 0
+        ? args
+        : new String[] {"Oving_8/diverse.txt", "Oving_8/diverse.lyx", "Oving_8/opg8-kompr.lyx"};
+    for (String file : files) {
+      byte[] data = Files.readAllBytes(Paths.get(file));
+      benchmark(file, Arrays.copyOf(data, Math.min(data.length, Compress.BLOCK_SIZE)));
+    }
+    benchmark("random", randomData(SYNTHETIC_SIZE));
+    benchmark("repetitive", repetitiveData(SYNTHETIC_SIZE));
+    System.out.println("(sink " + (sink & 1) + ")");
+  }
+}
@@ -2,6 +2,11 @@ import java.awt.*;
 import java.io.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.zip.CRC32;
 
 import org.openstreetmap.gui.jmapviewer.JMapViewer;
 import org.openstreetmap.gui.jmapviewer.MapMarkerDot;
@@ -22,7 +27,8 @@ public class ALT {
    * The main method that orchestrates reading graph data, executing pathfinding algorithms,
    * and visualizing results.
    *
-   * @param args Command line arguments, not used in this application.
+   * @param args Command line arguments, "deltastepping" runs the delta-stepping benchmark instead of the searches,
+   *             "parallel" preprocesses the landmarks with delta-stepping on the common pool instead of Dijkstra.
    */
   public static void main(String[] args) {
     Graph g = new Graph();
@@ -34,6 +40,10 @@ public class ALT {
       g.readNodes(nodesReader);
       g.readEdges(edgesReader);
       g.readInterestPoints(POIReader);
+      File profiles = new File("norden/reisetider.txt");
+      if (profiles.exists()) g.readProfiles(new BufferedReader(new FileReader(profiles)));
+      File turnRestrictions = new File("norden/svingrestriksjoner.txt");
+      if (turnRestrictions.exists()) g.readTurnRestrictions(new BufferedReader(new FileReader(turnRestrictions)));
 
       Node start = g.node[5009309]; //   Kårvåg - 3292784
       Node destination = g.node[999080];   //    Gjemnes - 7352330
@@ -52,18 +62,28 @@ public class ALT {
       String[] landmarks = {"Nordkapp", "Kristiansand", "Krakow", "Bremen", "Joensuu"};
 
       String filename = "preprocessedNordicMap.txt";
-      FileWriter dijkstra = new FileWriter("dijkstraNodes.txt");
-      FileWriter altAlgorithm = new FileWriter("altNodes.txt");
+      double simplifyMeters = 10; // Douglas-Peucker tolerance for the exported paths
 
       long endTime;
       long startTime;
-      if(!new File(filename).exists()){
+      // The landmark distances depend on the static edge weights, which readProfiles lowers, so the file is
+      // preprocessed again whenever it was built from other weights than the ones read above
+      if(!g.isPreprocessedMapCurrent(filename)){
         startTime = System.currentTimeMillis();
-        g.preprocessMap(landmarks, filename);
+        if (Arrays.asList(args).contains("parallel")) {
+          g.preprocessMap(landmarks, filename, ForkJoinPool.commonPool(), Graph.DEFAULT_DELTA);
+        } else {
+          g.preprocessMap(landmarks, filename);
+        }
         endTime= System.currentTimeMillis();
         System.out.println("Time spent preprocessing map: "+(endTime-startTime));
       }
 
+      if (args.length > 0 && args[0].equals("deltastepping")) {
+        benchmarkDeltaStepping(g, g.findInterestPoints(landmarks[0]));
+        return;
+      }
+
       startTime = System.currentTimeMillis();
       g.readPreProcessedMap(filename);
       endTime = System.currentTimeMillis();
@@ -72,7 +92,7 @@ public class ALT {
       startTime = System.currentTimeMillis();
       g.dijkstra(start,destination);
       endTime = System.currentTimeMillis();
-      writeSearchResults(destination,dijkstra);
+      PathWriter.write(destination, "dijkstraNodes.txt", PathWriter.Format.CSV, simplifyMeters);
       System.out.println("Time spent on dijkstra: "+(endTime-startTime) + " ms");
       System.out.println("Time used from start->end: "+formatSeconds(((Prev)g.node[destination.value].d).dist/100) + "\n");
 
@@ -84,7 +104,7 @@ public class ALT {
       startTime = System.currentTimeMillis();
       g.altAlgorithm(start,destination);
       endTime = System.currentTimeMillis();
-      writeSearchResults(destination,altAlgorithm);
+      PathWriter.write(destination, "altNodes.txt", PathWriter.Format.CSV, simplifyMeters);
 
       System.out.println("Time spent on alt algorithm: "+(endTime-startTime) + "ms");
       System.out.println("Time used from start->end: "+formatSeconds(((Prev)g.node[destination.value].d).dist/100) + "\n");
@@ -95,6 +115,35 @@ public class ALT {
       }
       System.out.println("Alt visited nodes vs dijkstra visited nodes: " + altVisited + '/' + dijkstraVisited);
 
+      int[] candidates = new Random(1).ints(1000000, 0, g.N).toArray();
+      int[] lowerBounds = new int[candidates.length];
+      int[] upperBounds = new int[candidates.length];
+      startTime = System.nanoTime();
+      g.estimate(start, candidates, lowerBounds, upperBounds);
+      endTime = System.nanoTime();
+      System.out.printf("Estimated %d candidate pairs in %d ms (%.1f million pairs/s)%n", candidates.length,
+          (endTime - startTime) / 1000000, candidates.length * 1000.0 / (endTime - startTime));
+
+      int departure = 8 * 3600 * 100; // 08:00
+      startTime = System.nanoTime();
+      g.altAlgorithm(start, destination);
+      endTime = System.nanoTime();
+      long staticNanos = endTime - startTime;
+      startTime = System.nanoTime();
+      int travelTime = g.timeDependentSearch(start, destination, departure, true);
+      endTime = System.nanoTime();
+      System.out.printf("%nTime spent on alt algorithm, static vs time-dependent: %d ms vs %d ms (%.2fx)%n",
+          staticNanos / 1000000, (endTime - startTime) / 1000000, (double) (endTime - startTime) / staticNanos);
+      System.out.println("Time used from start->end leaving at 08:00: " + formatSeconds(travelTime / 100));
+      System.out.println("Memory used by " + g.profileCount + " travel-time profiles: " + g.profileMemory() + " bytes\n");
+
+      startTime = System.nanoTime();
+      int turnCost = g.edgeBasedSearch(start, destination, true);
+      endTime = System.nanoTime();
+      System.out.println("Time spent on edge-based alt algorithm with " + g.turns.size() + " turn restrictions: "
+          + (endTime - startTime) / 1000000 + " ms");
+      System.out.println("Time used from start->end with turn costs: " + formatSeconds(turnCost / 100) + "\n");
+
       Node[] ladestasjoner = g.dijkstra(orkanger,ladestasjon,numberOfPoints);
       Node[] drikkesteder = g.dijkstra(trondheimCamping,drikkested,numberOfPoints);
       Node[] spisesteder = g.dijkstra(hotellOstersund,spisested,numberOfPoints);
@@ -124,30 +173,34 @@ public class ALT {
   }
 
   /**
-   * Writes the search results of the pathfinding algorithms to a file.
+   * Compares delta-stepping with Dijkstra's algorithm from one node, for an increasing number of threads,
+   * and checks that all runs give the same distances.
    *
-   * @param destination The end node of the path.
-   * @param fw          FileWriter to write the output to.
-   * @throws IOException If an I/O error occurs.
+   * @param g The graph.
+   * @param s The source node.
+   * @throws IllegalStateException If delta-stepping gives other distances than Dijkstra's algorithm.
    */
-  private static void writeSearchResults(Node destination, FileWriter fw) throws IOException {
-    int index = 0;
-    Node n = destination;
-    Prev p;
-    while(n!=null){
-      p=(Prev)n.d;
-      n=p.prev;
-      index++;
-    }
-    int adjust = index/500;
-    n = destination;
-    for(int i = 0; i<index; i++){
-      if(i%(adjust+1)==0) fw.write(n+"\n");
-      p=(Prev)n.d;
-      n=p.prev;
-    }
-    fw.close();
-
+  static void benchmarkDeltaStepping(Graph g, Node s) {
+    long startTime = System.currentTimeMillis();
+    g.dijkstra(s);
+    long endTime = System.currentTimeMillis();
+    int[] expected = new int[g.N];
+    for (int i = 0; i < g.N; i++) expected[i] = ((Prev) g.node[i].d).dist;
+    System.out.println("Dijkstra: " + (endTime - startTime) + " ms");
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads <= cores; threads = threads == cores ? cores + 1 : Math.min(2 * threads, cores)) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      g.deltaStepping(s, false, Graph.DEFAULT_DELTA, pool); // Warm up
+      startTime = System.currentTimeMillis();
+      int[] dist = g.deltaStepping(s, false, Graph.DEFAULT_DELTA, pool);
+      endTime = System.currentTimeMillis();
+      pool.shutdown();
+      System.out.println("Delta-stepping with " + threads + " threads: " + (endTime - startTime) + " ms");
+      if (!Arrays.equals(expected, dist)) {
+        throw new IllegalStateException("Delta-stepping with " + threads + " threads differs from Dijkstra");
+      }
+    }
   }
 
   /**
@@ -231,7 +284,9 @@ public class ALT {
    * A specialized Edge class that includes a weight for the edge, used in pathfinding algorithms.
    */
   static class WEdge extends Edge {
-    int weight; // Weight or cost associated with this edge
+    int weight; // Weight or cost associated with this edge, the minimum travel time if the edge has a profile
+    int profile = -1; // Index of the travel-time profile of this edge, or -1 if the weight is static
+    int id = -1; // Index of the edge in the order it was read, used by the edge-based search
 
     /**
      * Constructs a weighted edge with specified destination node, next edge, and weight.
@@ -273,6 +328,568 @@ public class ALT {
     }
   }
 
+  /**
+   * Streams a path to a file as CSV, a GeoJSON LineString or a compact binary polyline.
+   * The path is written in one pass over the {@link Prev} chain, from the destination back to the start,
+   * using only a fixed-size window of points regardless of the length of the route.
+   * Douglas-Peucker simplification can be applied to each window.
+   */
+  static class PathWriter implements Closeable {
+    /**
+     * The supported output formats.
+     * CSV writes one "latitude,longitude" line per point, GeoJSON writes a single LineString feature and
+     * POLYLINE writes coordinates as zigzag varint deltas in fixed point with five decimals.
+     */
+    enum Format { CSV, GEOJSON, POLYLINE }
+
+    private static final int WINDOW = 4096; // Points kept in memory before they are simplified and flushed
+    private static final double EARTH_RADIUS = 6371000; // Mean earth radius in meters
+    private static final double POLYLINE_SCALE = 1e5; // Fixed point scale used by the polyline format
+
+    private final BufferedOutputStream out; // Buffered output for all formats
+    private final Format format; // The format being written
+    private final double tolerance; // Simplification tolerance in meters, 0 disables simplification
+    private final double[] lat = new double[WINDOW]; // Latitudes of the buffered points
+    private final double[] lon = new double[WINDOW]; // Longitudes of the buffered points
+    private final boolean[] keep = new boolean[WINDOW]; // Points kept by the simplification
+    private final int[] stack = new int[2 * WINDOW]; // Segment stack used by the simplification
+    private final StringBuilder text = new StringBuilder(); // Reused buffer for the text formats
+    private int buffered; // Number of points in the window
+    private int written; // Number of points written so far
+    private int lastLat, lastLon; // Previous fixed point coordinates for the polyline deltas
+
+    /**
+     * Opens a path writer for the given file.
+     *
+     * @param filename  The file to write to, it is overwritten.
+     * @param format    The output format.
+     * @param tolerance Douglas-Peucker tolerance in meters, or 0 to write every point.
+     * @throws IOException If the file cannot be opened.
+     */
+    PathWriter(String filename, Format format, double tolerance) throws IOException {
+      this.out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+      this.format = format;
+      this.tolerance = tolerance;
+      if (format == Format.GEOJSON) {
+        writeText("{\"type\":\"Feature\",\"properties\":{},\"geometry\":{\"type\":\"LineString\",\"coordinates\":[");
+      }
+    }
+
+    /**
+     * Writes the path ending in the given node, as found by the last search, to a file.
+     *
+     * @param destination The end node of the path.
+     * @param filename    The file to write to.
+     * @param format      The output format.
+     * @param tolerance   Douglas-Peucker tolerance in meters, or 0 to write every point.
+     * @return The number of points written.
+     * @throws IOException If an I/O error occurs.
+     */
+    static int write(Node destination, String filename, Format format, double tolerance) throws IOException {
+      try (PathWriter pw = new PathWriter(filename, format, tolerance)) {
+        for (Node n = destination; n != null; n = ((Prev) n.d).prev) {
+          pw.add(Double.parseDouble(n.latitude), Double.parseDouble(n.longitude));
+        }
+        pw.flushWindow(true);
+        return pw.written;
+      }
+    }
+
+    /**
+     * Adds a point to the path. Points are flushed once the window is full.
+     *
+     * @param latitude  The latitude of the point.
+     * @param longitude The longitude of the point.
+     * @throws IOException If an I/O error occurs.
+     */
+    void add(double latitude, double longitude) throws IOException {
+      if (buffered == WINDOW) flushWindow(false);
+      lat[buffered] = latitude;
+      lon[buffered] = longitude;
+      buffered++;
+    }
+
+    /**
+     * Simplifies and writes the buffered points. Unless this is the last window, the last point is kept
+     * as the first point of the next window so that consecutive windows stay connected.
+     *
+     * @param last True if no more points will be added.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void flushWindow(boolean last) throws IOException {
+      if (buffered == 0) return;
+      simplify();
+      int end = last ? buffered : buffered - 1;
+      for (int i = 0; i < end; i++) {
+        if (keep[i]) writePoint(lat[i], lon[i]);
+      }
+      if (last) {
+        buffered = 0;
+      } else {
+        lat[0] = lat[buffered - 1];
+        lon[0] = lon[buffered - 1];
+        buffered = 1;
+      }
+    }
+
+    /**
+     * Marks the points of the window to keep, using Douglas-Peucker with an explicit stack.
+     */
+    private void simplify() {
+      int n = buffered;
+      if (tolerance <= 0 || n < 3) {
+        Arrays.fill(keep, 0, n, true);
+        return;
+      }
+      Arrays.fill(keep, 0, n, false);
+      keep[0] = true;
+      keep[n - 1] = true;
+      double cos = Math.cos(Math.toRadians(lat[0]));
+      int top = 0;
+      stack[top++] = 0;
+      stack[top++] = n - 1;
+      while (top > 0) {
+        int last = stack[--top];
+        int first = stack[--top];
+        double ax = lon[first] * cos, ay = lat[first];
+        double dx = lon[last] * cos - ax, dy = lat[last] - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double maxDistance = -1;
+        int index = -1;
+        for (int i = first + 1; i < last; i++) {
+          double px = lon[i] * cos - ax, py = lat[i] - ay;
+          double distance;
+          if (lengthSquared == 0) {
+            distance = px * px + py * py;
+          } else {
+            double cross = px * dy - py * dx;
+            distance = cross * cross / lengthSquared;
+          }
+          if (distance > maxDistance) {
+            maxDistance = distance;
+            index = i;
+          }
+        }
+        if (index != -1 && Math.toRadians(Math.sqrt(maxDistance)) * EARTH_RADIUS > tolerance) {
+          keep[index] = true;
+          stack[top++] = first;
+          stack[top++] = index;
+          stack[top++] = index;
+          stack[top++] = last;
+        }
+      }
+    }
+
+    /**
+     * Writes a single point in the selected format.
+     *
+     * @param latitude  The latitude of the point.
+     * @param longitude The longitude of the point.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void writePoint(double latitude, double longitude) throws IOException {
+      switch (format) {
+        case CSV:
+          text.setLength(0);
+          text.append(latitude).append(',').append(longitude).append('\n');
+          writeText(text);
+          break;
+        case GEOJSON:
+          text.setLength(0);
+          if (written > 0) text.append(',');
+          text.append('[').append(longitude).append(',').append(latitude).append(']');
+          writeText(text);
+          break;
+        case POLYLINE:
+          int fixedLat = (int) Math.round(latitude * POLYLINE_SCALE);
+          int fixedLon = (int) Math.round(longitude * POLYLINE_SCALE);
+          writeVarint(fixedLat - lastLat);
+          writeVarint(fixedLon - lastLon);
+          lastLat = fixedLat;
+          lastLon = fixedLon;
+          break;
+      }
+      written++;
+    }
+
+    /**
+     * Writes a signed value as a zigzag encoded varint, 7 bits per byte with the high bit as continuation flag.
+     *
+     * @param value The value to write.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void writeVarint(int value) throws IOException {
+      int v = (value << 1) ^ (value >> 31);
+      while ((v & ~0x7F) != 0) {
+        out.write((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      out.write(v);
+    }
+
+    /**
+     * Writes ASCII text to the output without creating intermediate strings.
+     *
+     * @param s The text to write.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void writeText(CharSequence s) throws IOException {
+      for (int i = 0; i < s.length(); i++) {
+        out.write(s.charAt(i));
+      }
+    }
+
+    /**
+     * Flushes the remaining points, closes the GeoJSON document if needed and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+      flushWindow(true);
+      if (format == Format.GEOJSON) writeText("]}}\n");
+      out.close();
+    }
+  }
+
+  /**
+   * Table of turn costs between pairs of edges, stored in an open-addressed hash table keyed on (in edge, out edge).
+   * Turns that are not in the table are free.
+   */
+  static class TurnTable {
+    static final int BANNED = -1; // Cost of a forbidden turn
+    private static final long EMPTY = -1L; // Marks an unused slot
+    private long[] keys; // (in edge << 32) | out edge
+    private int[] costs; // Cost of the turn in each slot
+    private int size; // Number of turns in the table
+    private int mask; // Capacity - 1, the capacity is a power of two
+
+    /**
+     * Constructs an empty turn table.
+     */
+    TurnTable() {
+      resize(16);
+    }
+
+    /**
+     * Adds or replaces the cost of a turn.
+     *
+     * @param in   Id of the edge the turn comes from.
+     * @param out  Id of the edge the turn goes to.
+     * @param cost The cost of the turn, or BANNED if the turn is forbidden.
+     */
+    void put(int in, int out, int cost) {
+      if (2 * (size + 1) > keys.length) resize(2 * keys.length);
+      long key = ((long) in << 32) | out;
+      int i = slot(key);
+      while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+      if (keys[i] == EMPTY) size++;
+      keys[i] = key;
+      costs[i] = cost;
+    }
+
+    /**
+     * Returns the cost of a turn.
+     *
+     * @param in  Id of the edge the turn comes from.
+     * @param out Id of the edge the turn goes to.
+     * @return The cost of the turn, 0 if it is not in the table, or BANNED if it is forbidden.
+     */
+    int cost(int in, int out) {
+      if (size == 0) return 0;
+      long key = ((long) in << 32) | out;
+      for (int i = slot(key); keys[i] != EMPTY; i = (i + 1) & mask) {
+        if (keys[i] == key) return costs[i];
+      }
+      return 0;
+    }
+
+    /**
+     * Returns the number of turns in the table.
+     *
+     * @return The number of turns.
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * Finds the home slot of a key.
+     *
+     * @param key The key to hash.
+     * @return The first slot to probe.
+     */
+    private int slot(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h >>> 32) & mask;
+    }
+
+    /**
+     * Rehashes the table into a new capacity.
+     *
+     * @param capacity The new capacity, a power of two.
+     */
+    private void resize(int capacity) {
+      long[] oldKeys = keys;
+      int[] oldCosts = costs;
+      keys = new long[capacity];
+      costs = new int[capacity];
+      Arrays.fill(keys, EMPTY);
+      mask = capacity - 1;
+      size = 0;
+      if (oldKeys == null) return;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != EMPTY) put((int) (oldKeys[i] >>> 32), (int) oldKeys[i], oldCosts[i]);
+      }
+    }
+  }
+
+  /**
+   * A binary min-heap of primitive longs. Entries are packed as (priority << 32) | id, so the heap orders by priority
+   * without allocating. Stale entries are not removed but skipped by the caller when they are polled.
+   */
+  static class LongHeap {
+    private long[] heap = new long[1024]; // The heap array
+    private int size; // Number of entries in the heap
+
+    /**
+     * Adds an entry to the heap.
+     *
+     * @param priority The priority of the entry, must not be negative.
+     * @param id       The id stored with the entry.
+     */
+    void add(int priority, int id) {
+      if (size == heap.length) heap = Arrays.copyOf(heap, 2 * size);
+      long entry = ((long) priority << 32) | id;
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (heap[parent] <= entry) break;
+        heap[i] = heap[parent];
+        i = parent;
+      }
+      heap[i] = entry;
+    }
+
+    /**
+     * Removes and returns the entry with the lowest priority.
+     *
+     * @return The packed entry, use priority() and id() to unpack it.
+     */
+    long poll() {
+      long top = heap[0];
+      long last = heap[--size];
+      int i = 0;
+      int half = size >>> 1;
+      while (i < half) {
+        int child = 2 * i + 1;
+        if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+        if (last <= heap[child]) break;
+        heap[i] = heap[child];
+        i = child;
+      }
+      heap[i] = last;
+      return top;
+    }
+
+    /**
+     * Checks if the heap is empty.
+     *
+     * @return True if there are no entries.
+     */
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    /**
+     * Unpacks the priority of an entry.
+     *
+     * @param entry The packed entry.
+     * @return The priority.
+     */
+    static int priority(long entry) {
+      return (int) (entry >>> 32);
+    }
+
+    /**
+     * Unpacks the id of an entry.
+     *
+     * @param entry The packed entry.
+     * @return The id.
+     */
+    static int id(long entry) {
+      return (int) entry;
+    }
+  }
+
+  /**
+   * Parallel delta-stepping single-source shortest paths over a compact copy of the adjacency lists.
+   * Nodes are kept in buckets of width delta by tentative distance. The smallest bucket is emptied repeatedly,
+   * relaxing the edges of all its nodes in parallel on a ForkJoinPool, until no node falls back into it.
+   * Distances are updated with compare-and-set, so the result is exactly the distances of Dijkstra's algorithm.
+   */
+  static class DeltaStepping {
+    private static final int CHUNK = 256; // Frontier nodes relaxed by one task
+    private final int n; // Number of nodes
+    private final int[] first; // Edges of node v are first[v] until first[v + 1]
+    private final int[] target; // Target node of each edge
+    private final int[] weight; // Weight of each edge
+    private final int maxWeight; // Largest edge weight, bounds how many buckets can be in use at once
+
+    /**
+     * Copies the adjacency lists of the given nodes into arrays.
+     *
+     * @param nodes The nodes of the graph, indexed by their value.
+     */
+    DeltaStepping(Node[] nodes) {
+      n = nodes.length;
+      first = new int[n + 1];
+      for (int v = 0; v < n; v++) {
+        int degree = 0;
+        for (Edge e = nodes[v].edge1; e != null; e = e.next) degree++;
+        first[v + 1] = first[v] + degree;
+      }
+      target = new int[first[n]];
+      weight = new int[first[n]];
+      int max = 0;
+      for (int v = 0; v < n; v++) {
+        int i = first[v];
+        for (WEdge w = (WEdge) nodes[v].edge1; w != null; w = (WEdge) w.next, i++) {
+          target[i] = w.to.value;
+          weight[i] = w.weight;
+          max = Math.max(max, w.weight);
+        }
+      }
+      maxWeight = max;
+    }
+
+    /**
+     * Computes the shortest distances from a source node.
+     *
+     * @param source The source node id.
+     * @param delta  The bucket width, in the unit of the edge weights.
+     * @param pool   The pool the relaxations run on, or null to run on the calling thread.
+     * @return The distance to every node, Prev.inf for nodes that cannot be reached.
+     */
+    int[] run(int source, int delta, ForkJoinPool pool) {
+      AtomicIntegerArray dist = new AtomicIntegerArray(n);
+      for (int v = 0; v < n; v++) dist.set(v, Prev.inf);
+      int bucketCount = maxWeight / delta + 2; // Tentative distances never span more buckets than this
+      int[][] buckets = new int[bucketCount][16];
+      int[] bucketSize = new int[bucketCount];
+      int[] queued = new int[n]; // The bucket each node is queued in, or -1
+      Arrays.fill(queued, -1);
+      int[] frontier = new int[n];
+      int[] improved = new int[Math.max(1, target.length)];
+      AtomicInteger improvedCount = new AtomicInteger();
+
+      dist.set(source, 0);
+      buckets[0][bucketSize[0]++] = source;
+      queued[source] = 0;
+      long pending = 1; // Entries in all buckets, including stale ones
+
+      for (int current = 0; pending > 0; current++) {
+        int slot = current % bucketCount;
+        while (bucketSize[slot] > 0) {
+          int size = 0;
+          int[] bucket = buckets[slot];
+          for (int i = 0; i < bucketSize[slot]; i++) {
+            int v = bucket[i];
+            if (queued[v] == current) {
+              queued[v] = -1;
+              frontier[size++] = v;
+            }
+          }
+          pending -= bucketSize[slot];
+          bucketSize[slot] = 0;
+
+          improvedCount.set(0);
+          Relax relax = new Relax(frontier, 0, size, dist, improved, improvedCount);
+          if (pool == null || size <= CHUNK) relax.compute();
+          else pool.invoke(relax);
+
+          for (int i = improvedCount.get(); i-- > 0; ) {
+            int v = improved[i];
+            int b = dist.get(v) / delta;
+            if (queued[v] == b) continue;
+            queued[v] = b;
+            int s = b % bucketCount;
+            if (bucketSize[s] == buckets[s].length) buckets[s] = Arrays.copyOf(buckets[s], 2 * bucketSize[s]);
+            buckets[s][bucketSize[s]++] = v;
+            pending++;
+          }
+        }
+      }
+
+      int[] result = new int[n];
+      for (int v = 0; v < n; v++) result[v] = dist.get(v);
+      return result;
+    }
+
+    /**
+     * Relaxes the edges of a range of frontier nodes, splitting the range until it is small enough.
+     * Targets whose distance was lowered are appended to a shared array.
+     */
+    private class Relax extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final int[] frontier; // Nodes whose edges are relaxed
+      private final int from, to; // Range of the frontier handled by this task
+      private final AtomicIntegerArray dist; // Tentative distances
+      private final int[] improved; // Receives the targets whose distance was lowered
+      private final AtomicInteger improvedCount; // Number of entries in improved
+
+      Relax(int[] frontier, int from, int to, AtomicIntegerArray dist, int[] improved, AtomicInteger improvedCount) {
+        this.frontier = frontier;
+        this.from = from;
+        this.to = to;
+        this.dist = dist;
+        this.improved = improved;
+        this.improvedCount = improvedCount;
+      }
+
+      @Override
+      protected void compute() {
+        if (to - from > CHUNK) {
+          int mid = (from + to) >>> 1;
+          invokeAll(new Relax(frontier, from, mid, dist, improved, improvedCount),
+              new Relax(frontier, mid, to, dist, improved, improvedCount));
+          return;
+        }
+        int[] local = new int[64];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+          int u = frontier[i];
+          int du = dist.get(u);
+          for (int e = first[u]; e < first[u + 1]; e++) {
+            int v = target[e];
+            int candidate = du + weight[e];
+            int old;
+            while ((old = dist.get(v)) > candidate) {
+              if (dist.compareAndSet(v, old, candidate)) {
+                if (count == local.length) {
+                  flush(local, count);
+                  count = 0;
+                }
+                local[count++] = v;
+                break;
+              }
+            }
+          }
+        }
+        flush(local, count);
+      }
+
+      /**
+       * Copies locally collected targets into the shared array.
+       *
+       * @param local The collected targets.
+       * @param count The number of targets.
+       */
+      private void flush(int[] local, int count) {
+        if (count == 0) return;
+        System.arraycopy(local, 0, improved, improvedCount.getAndAdd(count), count);
+      }
+    }
+  }
+
   /**
    * Represents the graph structure, containing nodes, edges, and methods for graph processing and pathfinding algorithms.
    */
@@ -291,6 +908,19 @@ public class ALT {
     List<Node> shortestPathNodesDijkstra; // List of nodes in the shortest path in Dijkstra's algorithm
     List<Node> visitedNodesAlt; // List of visited nodes in the ALT algorithm
     List<Node> shortestPathNodesAlt; // List of nodes in the shortest path in the ALT algorithm
+    static final int DAY = 24 * 3600 * 100; // Length of a day in the unit of the edge weights (1/100 s)
+    int profileCount; // Number of travel-time profiles
+    int[] profileStart = new int[1]; // Breakpoints of profile p are profileStart[p] until profileStart[p + 1]
+    int[] profileTime = new int[0]; // Time of day of each breakpoint, ascending within a profile
+    int[] profileWeight = new int[0]; // Travel time at each breakpoint
+    WEdge[] edges; // All edges by id
+    int[] edgeFrom; // The node each edge starts in, by edge id
+    TurnTable turns = new TurnTable(); // Turn costs and restrictions used by the edge-based search
+    List<Node> shortestPathNodesTurns = new ArrayList<>(); // List of nodes in the shortest path of the edge-based search
+    static final int DEFAULT_DELTA = 2000; // Default bucket width for delta-stepping, about 20 seconds of driving
+    DeltaStepping deltaStepping; // Compact adjacency of the graph for delta-stepping, built on first use
+    DeltaStepping deltaSteppingTransposed; // Compact adjacency of the transposed graph for delta-stepping
+    static final String WEIGHTS_MARKER = "weights"; // Starts the line of a preprocessed file holding weightChecksum
 
     /**
      * Default constructor to initialize graph-related structures.
@@ -327,12 +957,17 @@ public class ALT {
       node=new Node[N];
       for(int i = 0; i<N; i++) node[i] = new Node(i);
       K=Integer.parseInt(st.nextToken());
+      edges = new WEdge[K];
+      edgeFrom = new int[K];
       for(int i = 0; i<K; i++){
         st = new StringTokenizer(br.readLine());
         int from = Integer.parseInt(st.nextToken());
         int to = Integer.parseInt(st.nextToken());
         int weight = Integer.parseInt(st.nextToken());
         WEdge w = new WEdge(node[to],(WEdge) node[from].edge1,weight);
+        w.id = i;
+        edges[i] = w;
+        edgeFrom[i] = from;
         node[from].edge1 = w;
       }
     }
@@ -369,6 +1004,8 @@ public class ALT {
       System.out.println("Reading edges");
       StringTokenizer st = new StringTokenizer(br.readLine());
       K = Integer.parseInt(st.nextToken());
+      edges = new WEdge[K];
+      edgeFrom = new int[K];
       for (int i = 0; i < K; i++) {
         st = new StringTokenizer(br.readLine());
         int from = Integer.parseInt(st.nextToken());
@@ -377,6 +1014,9 @@ public class ALT {
         int length = Integer.parseInt(st.nextToken());
         WEdge w = new WEdge(node[to], (WEdge) node[from].edge1, weight);
         WEdge w2 = new WEdge(transposed[from], (WEdge) transposed[to].edge1, weight);
+        w.id = i;
+        edges[i] = w;
+        edgeFrom[i] = from;
         node[from].edge1 = w;
         transposed[to].edge1 = w2;
       }
@@ -407,6 +1047,143 @@ public class ALT {
       }
     }
 
+    /**
+     * Reads piecewise-linear travel-time profiles and attaches them to existing edges.
+     * Each line holds "from to n t1 w1 ... tn wn", where the times are seconds after midnight in ascending order
+     * and the weights are travel times in the same unit as the edge file. Between breakpoints the travel time is
+     * interpolated linearly, wrapping around midnight. The static weight of each edge, in both the graph and the
+     * transposed graph, is lowered to the minimum of its profile so that landmark distances stay admissible.
+     * Profiles must therefore be read before the map is preprocessed, and a preprocessed file built before the
+     * profiles existed or changed is out of date, see {@link #isPreprocessedMapCurrent(String)}.
+     * Lines for edges that are not in the graph, or without breakpoints, are skipped and counted.
+     *
+     * @param br BufferedReader to read the profiles from.
+     * @throws IOException If an I/O error occurs while reading.
+     */
+    void readProfiles(BufferedReader br) throws IOException {
+      System.out.println("Reading travel-time profiles");
+      StringTokenizer st = new StringTokenizer(br.readLine());
+      int count = Integer.parseInt(st.nextToken());
+      profileStart = Arrays.copyOf(profileStart, profileCount + count + 1);
+      int skipped = 0;
+      for (int i = 0; i < count; i++) {
+        st = new StringTokenizer(br.readLine());
+        int from = Integer.parseInt(st.nextToken());
+        int to = Integer.parseInt(st.nextToken());
+        int points = Integer.parseInt(st.nextToken());
+        int start = profileStart[profileCount];
+        if (profileTime.length < start + points) {
+          int capacity = Math.max(start + points, 2 * profileTime.length);
+          profileTime = Arrays.copyOf(profileTime, capacity);
+          profileWeight = Arrays.copyOf(profileWeight, capacity);
+        }
+        int minimum = Integer.MAX_VALUE;
+        for (int j = 0; j < points; j++) {
+          profileTime[start + j] = Integer.parseInt(st.nextToken()) * 100;
+          profileWeight[start + j] = Integer.parseInt(st.nextToken());
+          minimum = Math.min(minimum, profileWeight[start + j]);
+        }
+        WEdge edge = findEdge(node[from], node[to]);
+        if (edge == null || points == 0) {
+          skipped++;
+          continue;
+        }
+        edge.profile = profileCount;
+        edge.weight = minimum;
+        if (transposed != null) {
+          WEdge reverse = findEdge(transposed[to], transposed[from]);
+          if (reverse != null) reverse.weight = minimum;
+        }
+        profileStart[++profileCount] = start + points;
+      }
+      if (skipped > 0) {
+        System.out.println("Skipped " + skipped + " travel-time profiles for missing edges or without breakpoints");
+      }
+    }
+
+    /**
+     * Reads turn costs and restrictions into the turn table.
+     * Each line holds "from via to cost", describing the turn from the edge from->via onto the edge via->to.
+     * A cost of -1 forbids the turn. Turns that are not listed are free, including U-turns.
+     *
+     * @param br BufferedReader to read the turns from.
+     * @throws IOException If an I/O error occurs while reading.
+     */
+    void readTurnRestrictions(BufferedReader br) throws IOException {
+      System.out.println("Reading turn restrictions");
+      StringTokenizer st = new StringTokenizer(br.readLine());
+      int count = Integer.parseInt(st.nextToken());
+      for (int i = 0; i < count; i++) {
+        st = new StringTokenizer(br.readLine());
+        int from = Integer.parseInt(st.nextToken());
+        int via = Integer.parseInt(st.nextToken());
+        int to = Integer.parseInt(st.nextToken());
+        int cost = Integer.parseInt(st.nextToken());
+        WEdge in = findEdge(node[from], node[via]);
+        WEdge out = findEdge(node[via], node[to]);
+        if (in != null && out != null) turns.put(in.id, out.id, cost < 0 ? TurnTable.BANNED : cost);
+      }
+    }
+
+    /**
+     * Finds the edge between two nodes.
+     *
+     * @param from The node the edge starts in.
+     * @param to   The node the edge ends in.
+     * @return The edge, or null if there is none.
+     */
+    private WEdge findEdge(Node from, Node to) {
+      for (WEdge w = (WEdge) from.edge1; w != null; w = (WEdge) w.next) {
+        if (w.to == to) return w;
+      }
+      return null;
+    }
+
+    /**
+     * Returns the travel time of an edge when it is entered at the given time.
+     * Edges without a profile always return their static weight.
+     *
+     * @param w    The edge.
+     * @param time The time the edge is entered, in 1/100 s after midnight of the departure day.
+     * @return The travel time of the edge.
+     */
+    int travelTime(WEdge w, int time) {
+      if (w.profile < 0) return w.weight;
+      int first = profileStart[w.profile];
+      int last = profileStart[w.profile + 1] - 1;
+      int t = Math.floorMod(time, DAY);
+      int i = Arrays.binarySearch(profileTime, first, last + 1, t);
+      if (i >= 0) return profileWeight[i];
+      i = -i - 2; // The last breakpoint before t, or first - 1 if t is before all breakpoints
+      int t0, w0, t1, w1;
+      if (i < first) {
+        t0 = profileTime[last] - DAY;
+        w0 = profileWeight[last];
+        t1 = profileTime[first];
+        w1 = profileWeight[first];
+      } else if (i == last) {
+        t0 = profileTime[last];
+        w0 = profileWeight[last];
+        t1 = profileTime[first] + DAY;
+        w1 = profileWeight[first];
+      } else {
+        t0 = profileTime[i];
+        w0 = profileWeight[i];
+        t1 = profileTime[i + 1];
+        w1 = profileWeight[i + 1];
+      }
+      return w0 + (int) ((long) (w1 - w0) * (t - t0) / (t1 - t0));
+    }
+
+    /**
+     * Returns the number of bytes used by the travel-time profiles.
+     *
+     * @return The memory used by the profile arrays, in bytes.
+     */
+    long profileMemory() {
+      return 4L * (profileStart.length + profileTime.length + profileWeight.length);
+    }
+
     /**
      * Executes Dijkstra's algorithm to find the nearest points of a specified type from a starting node.
      *
@@ -601,6 +1378,144 @@ public class ALT {
       Collections.reverse(shortestPathNodesAlt);
     }
 
+    /**
+     * Executes a time-dependent search from a start node to an end node, leaving at a given time of day.
+     * Edge costs are evaluated at the time the edge is entered, so the distance of a node is its travel time
+     * from the departure. With landmarks the search uses the ALT heuristic, which stays admissible because the
+     * landmark distances are computed from the minimum weights.
+     *
+     * @param start        The starting node.
+     * @param end          The destination node.
+     * @param departure    The departure time, in 1/100 s after midnight.
+     * @param useLandmarks True to use the ALT heuristic, false for a plain time-dependent Dijkstra.
+     * @return The travel time from start to end, or Prev.inf if end cannot be reached.
+     */
+    public int timeDependentSearch(Node start, Node end, int departure, boolean useLandmarks) {
+      visited = new boolean[N];
+      found = new boolean[N];
+      initPrev(start);
+      pq = makePrio(start);
+      found[start.value] = true;
+      while (!pq.isEmpty() && !visited[end.value]) {
+        Node n = pq.poll();
+        visited[n.value] = true;
+        for (WEdge w = (WEdge) n.edge1; w != null; w = (WEdge) w.next) {
+          timeDependentShorten(n, end, w, departure, useLandmarks);
+        }
+      }
+      return ((Prev) end.d).dist;
+    }
+
+    /**
+     * Attempts to shorten the path to a node through an edge whose cost depends on the time it is entered.
+     *
+     * @param n            Node from which the edge originates.
+     * @param e            The end node of the search.
+     * @param w            The weighted edge to consider for shortening the path.
+     * @param departure    The departure time of the search.
+     * @param useLandmarks True if the ALT heuristic is used.
+     */
+    private void timeDependentShorten(Node n, Node e, WEdge w, int departure, boolean useLandmarks) {
+      if (visited[w.to.value]) return;
+      Prev nd = (Prev) n.d;
+      Prev md = (Prev) w.to.d;
+      if (!found[w.to.value]) {
+        if (useLandmarks) calculateEstimate(w.to, e);
+        pq.add(w.to);
+        found[w.to.value] = true;
+      }
+      int dist = nd.dist + travelTime(w, departure + nd.dist);
+      if (md.dist > dist) {
+        md.dist = dist;
+        md.prev = n;
+        pq.remove(w.to);
+        pq.add(w.to);
+      }
+    }
+
+    /**
+     * Executes an edge-based search from a start node to an end node that respects the turn table.
+     * The search state is the edge a node was reached through rather than the node itself, which lets a route pass
+     * a node twice, for example to get around a forbidden left turn. The line graph is never built: the successors
+     * of an edge are read from the adjacency list of its end node and priced with the turn table.
+     * With landmarks the ALT estimate of the end node of each edge is used, which stays admissible because turn
+     * costs are never negative.
+     *
+     * @param start        The starting node.
+     * @param end          The destination node.
+     * @param useLandmarks True to use the ALT heuristic, false for a plain edge-based Dijkstra.
+     * @return The cost of the shortest path including turn costs, or Prev.inf if end cannot be reached.
+     */
+    public int edgeBasedSearch(Node start, Node end, boolean useLandmarks) {
+      shortestPathNodesTurns.clear();
+      if (start == end) {
+        shortestPathNodesTurns.add(start);
+        return 0;
+      }
+      int[] dist = new int[K];
+      int[] prevEdge = new int[K];
+      int[] estimate = new int[N];
+      boolean[] settled = new boolean[K];
+      Arrays.fill(dist, Prev.inf);
+      Arrays.fill(estimate, -1);
+      LongHeap heap = new LongHeap();
+
+      for (WEdge w = (WEdge) start.edge1; w != null; w = (WEdge) w.next) {
+        if (w.weight < dist[w.id]) {
+          dist[w.id] = w.weight;
+          prevEdge[w.id] = -1;
+          heap.add(w.weight + edgeEstimate(w, end, estimate, useLandmarks), w.id);
+        }
+      }
+
+      int last = -1;
+      while (!heap.isEmpty()) {
+        int e = LongHeap.id(heap.poll());
+        if (settled[e]) continue;
+        settled[e] = true;
+        WEdge in = edges[e];
+        if (in.to == end) {
+          last = e;
+          break;
+        }
+        for (WEdge w = (WEdge) in.to.edge1; w != null; w = (WEdge) w.next) {
+          if (settled[w.id]) continue;
+          int turn = turns.cost(e, w.id);
+          if (turn == TurnTable.BANNED) continue;
+          int d = dist[e] + turn + w.weight;
+          if (d < dist[w.id]) {
+            dist[w.id] = d;
+            prevEdge[w.id] = e;
+            heap.add(d + edgeEstimate(w, end, estimate, useLandmarks), w.id);
+          }
+        }
+      }
+      if (last == -1) return Prev.inf;
+
+      for (int e = last; e != -1; e = prevEdge[e]) {
+        shortestPathNodesTurns.add(edges[e].to);
+      }
+      shortestPathNodesTurns.add(start);
+      Collections.reverse(shortestPathNodesTurns);
+      return dist[last];
+    }
+
+    /**
+     * Returns the landmark estimate from the end node of an edge to the destination, caching it per node.
+     *
+     * @param w            The edge.
+     * @param end          The destination node.
+     * @param estimate     Cached estimates per node, -1 if not yet calculated.
+     * @param useLandmarks True if the ALT heuristic is used, otherwise the estimate is 0.
+     * @return The estimate.
+     */
+    private int edgeEstimate(WEdge w, Node end, int[] estimate, boolean useLandmarks) {
+      if (!useLandmarks) return 0;
+      int n = w.to.value;
+      if (estimate[n] < 0) estimate[n] = landmarkEstimate(n, end.value);
+      return estimate[n];
+    }
+
     /**
      * Attempts to shorten the path to a node using the ALT heuristic, considering a given edge.
      *
@@ -632,16 +1547,99 @@ public class ALT {
      * @param endNode The destination node of the pathfinding process.
      */
     private void calculateEstimate(Node n, Node endNode) {
+      int largestEstimate = landmarkEstimate(n.value, endNode.value);
+      if (largestEstimate > 0) ((Prev)n.d).estimate = largestEstimate;
+    }
+
+    /**
+     * Calculates the largest lower bound on the distance between two nodes over all landmarks.
+     *
+     * @param n   The node the distance is estimated from.
+     * @param end The node the distance is estimated to.
+     * @return The estimate, never negative.
+     */
+    private int landmarkEstimate(int n, int end) {
       int largestEstimate = 0;
-      int previous = -1;
       for (int i = 0; i < landmarks.length; i++) {
-        int estimateFromLandmark = fromLandmark[i][endNode.value] - fromLandmark[i][n.value];
-        int estimateToLandmark = toLandmark[i][n.value] - toLandmark[i][endNode.value];
-        largestEstimate = Math.max(estimateToLandmark, estimateFromLandmark);
-        if (previous > largestEstimate) largestEstimate = previous;
-        previous = largestEstimate;
+        int estimateFromLandmark = fromLandmark[i][end] - fromLandmark[i][n];
+        int estimateToLandmark = toLandmark[i][n] - toLandmark[i][end];
+        largestEstimate = Math.max(largestEstimate, Math.max(estimateToLandmark, estimateFromLandmark));
       }
-      if (largestEstimate > 0) ((Prev)n.d).estimate = largestEstimate;
+      return largestEstimate;
+    }
+
+    /**
+     * Returns a lower bound on the travel time from one node to another, using the landmark distances only.
+     *
+     * @param u The node the travel time is estimated from.
+     * @param v The node the travel time is estimated to.
+     * @return A lower bound on the shortest distance from u to v.
+     */
+    public int estimate(Node u, Node v) {
+      return landmarkEstimate(u.value, v.value);
+    }
+
+    /**
+     * Returns an upper bound on the travel time from one node to another, using the landmark distances only.
+     * The bound is the shortest detour through a landmark, d(u, L) + d(L, v).
+     *
+     * @param u The node the travel time is estimated from.
+     * @param v The node the travel time is estimated to.
+     * @return An upper bound on the shortest distance from u to v.
+     */
+    public int upperBound(Node u, Node v) {
+      int best = Integer.MAX_VALUE;
+      for (int i = 0; i < landmarks.length; i++) {
+        best = Math.min(best, toLandmark[i][u.value] + fromLandmark[i][v.value]);
+      }
+      return best;
+    }
+
+    /**
+     * Estimates lower and upper bounds on the travel time from one node to a batch of targets.
+     * The loops run landmark by landmark over the whole batch, so the distances of the source are read once per
+     * landmark and the inner loop is a branch-free pass over the targets that the JIT can unroll.
+     *
+     * @param u       The node the travel times are estimated from.
+     * @param targets Node ids of the targets.
+     * @param lower   Receives the lower bound for each target, at least targets.length long.
+     * @param upper   Receives the upper bound for each target, at least targets.length long.
+     */
+    public void estimate(Node u, int[] targets, int[] lower, int[] upper) {
+      int count = targets.length;
+      Arrays.fill(lower, 0, count, 0);
+      Arrays.fill(upper, 0, count, Integer.MAX_VALUE);
+      for (int i = 0; i < landmarks.length; i++) {
+        int[] from = fromLandmark[i];
+        int[] to = toLandmark[i];
+        int fromU = from[u.value];
+        int toU = to[u.value];
+        for (int j = 0; j < count; j++) {
+          int v = targets[j];
+          int fromV = from[v];
+          int bound = Math.max(fromV - fromU, toU - to[v]);
+          lower[j] = Math.max(lower[j], bound);
+          upper[j] = Math.min(upper[j], toU + fromV);
+        }
+      }
+    }
+
+    /**
+     * Computes the shortest distances from a node to all nodes with parallel delta-stepping.
+     *
+     * @param s          The source node.
+     * @param transposed True to search the transposed graph, giving distances to s instead of from s.
+     * @param delta      The bucket width, in the unit of the edge weights.
+     * @param pool       The pool the relaxations run on, or null to run on the calling thread.
+     * @return The distance to every node, Prev.inf for nodes that cannot be reached.
+     */
+    public int[] deltaStepping(Node s, boolean transposed, int delta, ForkJoinPool pool) {
+      if (transposed) {
+        if (deltaSteppingTransposed == null) deltaSteppingTransposed = new DeltaStepping(this.transposed);
+        return deltaSteppingTransposed.run(s.value, delta, pool);
+      }
+      if (deltaStepping == null) deltaStepping = new DeltaStepping(node);
+      return deltaStepping.run(s.value, delta, pool);
     }
 
     /**
@@ -652,9 +1650,27 @@ public class ALT {
      * @throws IOException If an I/O error occurs while writing to the file.
      */
     public void preprocessMap(String[] landmarks, String filename) throws IOException{
+      preprocessMap(landmarks, filename, null, DEFAULT_DELTA);
+    }
+
+    /**
+     * Preprocesses the map like {@link #preprocessMap(String[], String)}, optionally computing the landmark distances
+     * with parallel delta-stepping instead of Dijkstra's algorithm. Both give identical distances.
+     *
+     * @param landmarks An array of landmark names to be used in preprocessing.
+     * @param filename  The filename to save the preprocessed data.
+     * @param pool      The pool to run delta-stepping on, or null to use Dijkstra's algorithm.
+     * @param delta     The bucket width for delta-stepping.
+     * @throws IOException If an I/O error occurs while writing to the file.
+     */
+    public void preprocessMap(String[] landmarks, String filename, ForkJoinPool pool, int delta) throws IOException{
       System.out.println("Preprocessing...");
       int[][] dijkstraLengths = new int[landmarks.length][N];
       for (int i = 0; i < landmarks.length; i++) {
+        if (pool != null) {
+          dijkstraLengths[i] = deltaStepping(findInterestPoints(landmarks[i]), false, delta, pool);
+          continue;
+        }
         dijkstra(findInterestPoints(landmarks[i]));
         for (int j = 0; j < N; j++) {
           dijkstraLengths[i][j] = ((Prev)node[j].d).dist;
@@ -663,6 +1679,10 @@ public class ALT {
       System.out.println("Dijkstra done");
       int[][] dijkstraLengthsTransposed = new int[landmarks.length][N];
       for (int i = 0; i < landmarks.length; i++) {
+        if (pool != null) {
+          dijkstraLengthsTransposed[i] = deltaStepping(findTransposedInterestPoint(landmarks[i]), true, delta, pool);
+          continue;
+        }
         dijkstraTransposed(findTransposedInterestPoint(landmarks[i]));
         for (int j = 0; j < N; j++) {
           dijkstraLengthsTransposed[i][j] = ((Prev)transposed[j].d).dist;
@@ -670,6 +1690,7 @@ public class ALT {
       }
       System.out.println("Dijkstra transposed done");
       FileWriter fw = new FileWriter(filename);
+      fw.write(WEIGHTS_MARKER + " " + weightChecksum() + "\n");
       for (int i = 0; i < landmarks.length; i++) {
         fw.write(String.valueOf(findInterestPoints(landmarks[i]).value));
         if(i+1<landmarks.length) fw.write(" ");
@@ -703,7 +1724,9 @@ public class ALT {
      */
     public void readPreProcessedMap(String filename) throws IOException {
       BufferedReader br = new BufferedReader(new FileReader(filename));
-      StringTokenizer str = new StringTokenizer(br.readLine());
+      String line = br.readLine();
+      if (line.startsWith(WEIGHTS_MARKER)) line = br.readLine();
+      StringTokenizer str = new StringTokenizer(line);
       final int size = str.countTokens();
       this.landmarks=new int[size];
       this.fromLandmark= new int[size][N];
@@ -730,6 +1753,41 @@ public class ALT {
       System.out.println("Pre processed map was read");
     }
 
+    /**
+     * Checks that a preprocessed file exists and was built from the current static edge weights.
+     * The landmark distances are only admissible bounds if no edge has become cheaper since they were computed,
+     * which happens when travel-time profiles are added or changed, since they lower the static weights.
+     * Files written before the weights were recorded are treated as out of date.
+     *
+     * @param filename The filename of the preprocessed data.
+     * @return True if the file can be used, false if the map has to be preprocessed again.
+     * @throws IOException If an I/O error occurs while reading from the file.
+     */
+    public boolean isPreprocessedMapCurrent(String filename) throws IOException {
+      if (!new File(filename).exists()) return false;
+      try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+        String line = br.readLine();
+        return line != null && line.equals(WEIGHTS_MARKER + " " + weightChecksum());
+      }
+    }
+
+    /**
+     * Computes a checksum of the static weight of every edge, in the order of the edge ids.
+     *
+     * @return The CRC32 of the weights.
+     */
+    long weightChecksum() {
+      CRC32 crc = new CRC32();
+      for (WEdge edge : edges) {
+        int weight = edge.weight;
+        crc.update(weight >>> 24);
+        crc.update(weight >>> 16);
+        crc.update(weight >>> 8);
+        crc.update(weight);
+      }
+      return crc.getValue();
+    }
+
     /**
      * Finds a node in the graph based on its name.
      *